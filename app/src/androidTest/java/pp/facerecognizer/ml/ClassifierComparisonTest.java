@@ -0,0 +1,64 @@
+package pp.facerecognizer.ml;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Compares the SVM with the HNSW graph and the nearest-neighbour classifiers on the bundled
+ * training data, on the device where the native SVM runs. The report goes to logcat:
+ *
+ * <pre>adb shell am instrument -w -e class pp.facerecognizer.ml.ClassifierComparisonTest \
+ *     pp.facerecognizer.test/androidx.test.runner.AndroidJUnitRunner</pre>
+ */
+@RunWith(AndroidJUnit4.class)
+public class ClassifierComparisonTest {
+    private static final String LOG_TAG = "ClassifierComparison";
+
+    private static final int FOLDS = 5;
+    private static final float UNKNOWN_DISTANCE = 1.1f;
+
+    @Test
+    public void comparesEveryCandidateOnTheBundledData() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        File text = new File(context.getCacheDir(), "data");
+        File binary = new File(context.getCacheDir(), "embeddings");
+        try (InputStream in = context.getAssets().open("data");
+             OutputStream out = new FileOutputStream(text)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+
+        EmbeddingStore store = EmbeddingStore.migrate(text, binary, FaceNet.EMBEDDING_SIZE);
+        String report = ClassifierBenchmark.withDefaults(UNKNOWN_DISTANCE)
+                .run(store.snapshot(), store.getDimension(), FOLDS);
+        for (String line : report.split("\n")) {
+            Log.i(LOG_TAG, line);
+        }
+
+        String[] lines = report.trim().split("\n");
+        assertEquals(6, lines.length);
+        // A failed fit counts every query of its fold as wrong.
+        assertFalse(report, lines[0].contains("(0/"));
+
+        text.delete();
+        binary.delete();
+    }
+}
@@ -42,7 +42,6 @@ import android.widget.Toast;
 import java.nio.ByteBuffer;
 
 import androidx.appcompat.app.AppCompatActivity;
-import pp.facerecognizer.env.ImageUtils;
 import pp.facerecognizer.env.Logger;
 
 public abstract class CameraActivity extends AppCompatActivity
@@ -59,15 +58,15 @@ public abstract class CameraActivity extends AppCompatActivity
     private Handler handler;
     private HandlerThread handlerThread;
     private boolean isProcessingFrame = false;
-    private byte[][] yuvBytes = new byte[3][];
-    private int[] rgbBytes = null;
+    // The image being processed, read in place until readyForNextImage() unless taken.
+    private Image image;
+    private Plane[] planes;
     private int yRowStride;
 
     protected int previewWidth = 0;
     protected int previewHeight = 0;
 
     private Runnable postInferenceCallback;
-    private Runnable imageConverter;
 
     @Override
     protected void onCreate(final Bundle savedInstanceState) {
@@ -84,17 +83,23 @@ public abstract class CameraActivity extends AppCompatActivity
         }
     }
 
-    protected int[] getRgbBytes() {
-        imageConverter.run();
-        return rgbBytes;
+    /**
+     * Hands the current image over to the caller, who has to close it. It stays valid after
+     * {@link #readyForNextImage()}, so it can be read while the next images are processed.
+     */
+    protected Image takeImage() {
+        Image taken = image;
+        image = null;
+        return taken;
     }
 
     protected int getLuminanceStride() {
         return yRowStride;
     }
 
-    protected byte[] getLuminance() {
-        return yuvBytes[0];
+    /** The Y plane of the current image, only valid until {@link #readyForNextImage()}. */
+    protected ByteBuffer getLuminance() {
+        return planes[0].getBuffer();
     }
 
     /**
@@ -106,43 +111,30 @@ public abstract class CameraActivity extends AppCompatActivity
         if (previewWidth == 0 || previewHeight == 0) {
             return;
         }
-        if (rgbBytes == null) {
-            rgbBytes = new int[previewWidth * previewHeight];
-        }
         try {
-            final Image image = reader.acquireLatestImage();
+            final Image acquired = reader.acquireLatestImage();
 
-            if (image == null) {
+            if (acquired == null) {
                 return;
             }
 
             if (isProcessingFrame) {
-                image.close();
+                acquired.close();
                 return;
             }
             isProcessingFrame = true;
             Trace.beginSection("imageAvailable");
-            final Plane[] planes = image.getPlanes();
-            fillBytes(planes, yuvBytes);
+            image = acquired;
+            planes = image.getPlanes();
             yRowStride = planes[0].getRowStride();
-            final int uvRowStride = planes[1].getRowStride();
-            final int uvPixelStride = planes[1].getPixelStride();
-
-            imageConverter =
-                    () -> ImageUtils.convertYUV420ToARGB8888(
-                            yuvBytes[0],
-                            yuvBytes[1],
-                            yuvBytes[2],
-                            previewWidth,
-                            previewHeight,
-                            yRowStride,
-                            uvRowStride,
-                            uvPixelStride,
-                            rgbBytes);
 
             postInferenceCallback =
                     () -> {
-                        image.close();
+                        if (image != null) {
+                            image.close();
+                            image = null;
+                        }
+                        planes = null;
                         isProcessingFrame = false;
                     };
             processImage();
@@ -210,10 +202,9 @@ public abstract class CameraActivity extends AppCompatActivity
         }
     }
 
-    protected synchronized void runInBackground(final Runnable r) {
-        if (handler != null) {
-            handler.post(r);
-        }
+    /** @return Whether the runnable was queued, it is dropped while the activity is paused. */
+    protected synchronized boolean runInBackground(final Runnable r) {
+        return handler != null && handler.post(r);
     }
 
     @Override
@@ -290,7 +281,8 @@ public abstract class CameraActivity extends AppCompatActivity
                         },
                         this,
                         getLayoutId(),
-                        getDesiredPreviewFrameSize());
+                        getDesiredPreviewFrameSize(),
+                        getMaxImages());
 
         camera2Fragment.setCamera(cameraId);
 
@@ -300,19 +292,6 @@ public abstract class CameraActivity extends AppCompatActivity
                 .commit();
     }
 
-    protected void fillBytes(final Plane[] planes, final byte[][] yuvBytes) {
-        // Because of the variable row stride it's not possible to know in
-        // advance the actual necessary dimensions of the yuv planes.
-        for (int i = 0; i < planes.length; ++i) {
-            final ByteBuffer buffer = planes[i].getBuffer();
-            if (yuvBytes[i] == null) {
-                LOGGER.d("Initializing buffer %d at size %d", i, buffer.capacity());
-                yuvBytes[i] = new byte[buffer.capacity()];
-            }
-            buffer.get(yuvBytes[i]);
-        }
-    }
-
     public boolean isDebug() {
         return debug;
     }
@@ -368,4 +347,12 @@ public abstract class CameraActivity extends AppCompatActivity
     protected abstract void onPreviewSizeChosen(final Size size, final int rotation);
     protected abstract int getLayoutId();
     protected abstract Size getDesiredPreviewFrameSize();
+
+    /**
+     * The number of preview images that may be open at once, those taken with
+     * {@link #takeImage()} included. Two leave one being processed and one for the camera.
+     */
+    protected int getMaxImages() {
+        return 2;
+    }
 }
@@ -224,6 +224,8 @@ public class CameraConnectionFragment extends Fragment {
      */
     private final int layout;
 
+    /** The number of preview images the listener may hold on to at once. */
+    private final int maxImages;
 
     private final ConnectionCallback cameraConnectionCallback;
 
@@ -231,11 +233,13 @@ public class CameraConnectionFragment extends Fragment {
             final ConnectionCallback connectionCallback,
             final OnImageAvailableListener imageListener,
             final int layout,
-            final Size inputSize) {
+            final Size inputSize,
+            final int maxImages) {
         this.cameraConnectionCallback = connectionCallback;
         this.imageListener = imageListener;
         this.layout = layout;
         this.inputSize = inputSize;
+        this.maxImages = maxImages;
     }
 
     /**
@@ -305,8 +309,10 @@ public class CameraConnectionFragment extends Fragment {
             final ConnectionCallback callback,
             final OnImageAvailableListener imageListener,
             final int layout,
-            final Size inputSize) {
-        return new CameraConnectionFragment(callback, imageListener, layout, inputSize);
+            final Size inputSize,
+            final int maxImages) {
+        return new CameraConnectionFragment(
+                callback, imageListener, layout, inputSize, maxImages);
     }
 
     @Override
@@ -508,7 +514,8 @@ public class CameraConnectionFragment extends Fragment {
             // Create the reader for the preview frames.
             previewReader =
                     ImageReader.newInstance(
-                            previewSize.getWidth(), previewSize.getHeight(), ImageFormat.YUV_420_888, 2);
+                            previewSize.getWidth(), previewSize.getHeight(), ImageFormat.YUV_420_888,
+                            maxImages);
 
             previewReader.setOnImageAvailableListener(imageListener, backgroundHandler);
             previewRequestBuilder.addTarget(previewReader.getSurface());
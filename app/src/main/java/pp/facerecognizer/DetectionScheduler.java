@@ -0,0 +1,90 @@
+package pp.facerecognizer;
+
+import android.graphics.RectF;
+import android.os.SystemClock;
+
+import pp.facerecognizer.ml.Classifier;
+import pp.facerecognizer.tracking.MultiBoxTracker;
+
+/**
+ * Decides when a camera frame is worth running the detector on, and which detected faces
+ * need to be recognized again. How many frames are in flight at once is up to the
+ * recognizer's frame pool, not to the scheduler.
+ *
+ * While the tracker follows every face with a high correlation and the scene holds still,
+ * detection only runs every so often to pick up faces that walked in. Losing a track, a
+ * dropping correlation or the camera moving bring it back right away. A face found where a
+ * track already is keeps the identity of the track until that identity gets old or was never
+ * certain.
+ */
+class DetectionScheduler implements Recognizer.KnownFaces {
+    // Detection is never more than this far apart, and not much more often without any face.
+    private static final long MAX_DETECTION_INTERVAL_MS = 2000;
+    private static final long EMPTY_DETECTION_INTERVAL_MS = 500;
+
+    // Below this correlation a track may be drifting off its face.
+    private static final float MIN_CORRELATION = 0.75f;
+
+    // Frame to frame movement of the scene, in preview frame pixels, that counts as motion.
+    private static final float MAX_FRAME_MOTION = 8.0f;
+
+    // A tracked identity is reused for a face that overlaps the track this much, unless it is
+    // older than MAX_IDENTITY_AGE_MS or its runner-up came within MIN_IDENTITY_MARGIN.
+    private static final float MIN_IDENTITY_OVERLAP = 0.5f;
+    private static final long MAX_IDENTITY_AGE_MS = 3000;
+    private static final float MIN_IDENTITY_MARGIN = 0.2f;
+
+    private static final String UNKNOWN_ID = Integer.toString(Classifier.UNKNOWN);
+
+    private final MultiBoxTracker tracker;
+
+    private long lastDetectionTime;
+
+    DetectionScheduler(MultiBoxTracker tracker) {
+        this.tracker = tracker;
+    }
+
+    /**
+     * @param now The current uptime.
+     * @return Whether the current frame should be submitted for detection.
+     */
+    boolean shouldDetect(long now) {
+        long elapsed = now - lastDetectionTime;
+        if (elapsed >= MAX_DETECTION_INTERVAL_MS) {
+            return true;
+        }
+        if (tracker.getTrackedCount() == 0) {
+            return elapsed >= EMPTY_DETECTION_INTERVAL_MS;
+        }
+        return tracker.hasLostTrack()
+                || tracker.getMinCorrelation() < MIN_CORRELATION
+                || tracker.getFrameMotion() > MAX_FRAME_MOTION;
+    }
+
+    /** Records that a frame was submitted for detection. */
+    void onDetect(long now) {
+        lastDetectionTime = now;
+    }
+
+    @Override
+    public Recognizer.Recognition recall(RectF location) {
+        Recognizer.Recognition identity = tracker.recall(location, MIN_IDENTITY_OVERLAP);
+        if (identity == null || UNKNOWN_ID.equals(identity.getId())) {
+            return null;
+        }
+
+        long age = SystemClock.uptimeMillis() - identity.getRecognizedAt();
+        if (age > MAX_IDENTITY_AGE_MS) {
+            return null;
+        }
+
+        if (!identity.getRunnersUp().isEmpty()) {
+            float margin = identity.getConfidence()
+                    - identity.getRunnersUp().get(0).getConfidence();
+            if (margin < MIN_IDENTITY_MARGIN) {
+                return null;
+            }
+        }
+        return identity;
+    }
+}
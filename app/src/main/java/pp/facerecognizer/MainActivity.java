@@ -20,8 +20,6 @@ import android.content.ClipData;
 import android.content.Intent;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
-import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
@@ -40,6 +38,7 @@ import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.android.material.snackbar.Snackbar;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
@@ -72,20 +71,15 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
     private Recognizer recognizer;
 
     private long lastProcessingTimeMs;
-    private Bitmap rgbFrameBitmap = null;
-    private Bitmap croppedBitmap = null;
     private Bitmap cropCopyBitmap = null;
 
-    private boolean computingDetection = false;
-
     private long timestamp = 0;
 
     private Matrix frameToCropTransform;
     private Matrix cropToFrameTransform;
 
     private MultiBoxTracker tracker;
-
-    private byte[] luminanceCopy;
+    private DetectionScheduler scheduler;
 
     private BorderedText borderedText;
 
@@ -143,6 +137,7 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
         borderedText.setTypeface(Typeface.MONOSPACE);
 
         tracker = new MultiBoxTracker(this);
+        scheduler = new DetectionScheduler(tracker);
 
         previewWidth = size.getWidth();
         previewHeight = size.getHeight();
@@ -151,9 +146,6 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
         LOGGER.i("Camera orientation relative to screen canvas: %d", sensorOrientation);
 
         LOGGER.i("Initializing at size %dx%d", previewWidth, previewHeight);
-        rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
-        croppedBitmap = Bitmap.createBitmap(CROP_WIDTH, CROP_HEIGHT, Config.ARGB_8888);
-
         frameToCropTransform =
                 ImageUtils.getTransformationMatrix(
                         previewWidth, previewHeight,
@@ -237,7 +229,7 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
     protected void processImage() {
         ++timestamp;
         final long currTimestamp = timestamp;
-        byte[] originalLuminance = getLuminance();
+        ByteBuffer originalLuminance = getLuminance();
         tracker.onFrame(
                 previewWidth,
                 previewHeight,
@@ -248,44 +240,60 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
         trackingOverlay.postInvalidate();
 
         // No mutex needed as this method is not reentrant.
-        if (computingDetection || !initialized || training) {
+        if (!initialized || training) {
             readyForNextImage();
             return;
         }
-        computingDetection = true;
-        LOGGER.i("Preparing image " + currTimestamp + " for detection in bg thread.");
 
-        rgbFrameBitmap.setPixels(getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
+        // The tracker follows the faces on its own while it is confident about them.
+        final long now = SystemClock.uptimeMillis();
+        if (!scheduler.shouldDetect(now)) {
+            readyForNextImage();
+            return;
+        }
 
-        if (luminanceCopy == null) {
-            luminanceCopy = new byte[originalLuminance.length];
+        // Every frame is still being detected or recognized.
+        final Recognizer.Frame frame = recognizer.obtainFrame();
+        if (frame == null) {
+            readyForNextImage();
+            return;
         }
-        System.arraycopy(originalLuminance, 0, luminanceCopy, 0, originalLuminance.length);
+        LOGGER.i("Preparing image " + currTimestamp + " for detection in bg thread.");
+
+        // The frame keeps the image until recognition is done, nothing is copied or converted.
+        frame.setImage(takeImage(), sensorOrientation);
         readyForNextImage();
 
-        final Canvas canvas = new Canvas(croppedBitmap);
-        canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
-        // For examining the actual TF input.
-        if (SAVE_PREVIEW_BITMAP) {
-            ImageUtils.saveBitmap(croppedBitmap);
-        }
+        scheduler.onDetect(now);
+        recognizer.submit(frame, currTimestamp, cropToFrameTransform, scheduler,
+                this::onRecognized);
+    }
 
-        runInBackground(
-                () -> {
-                    LOGGER.i("Running detection on image " + currTimestamp);
-                    final long startTime = SystemClock.uptimeMillis();
+    private void onRecognized(Recognizer.Frame frame, List<Recognizer.Recognition> recognitions) {
+        LOGGER.i("Recognized image " + frame.getTimestamp());
 
-                    cropCopyBitmap = Bitmap.createBitmap(croppedBitmap);
-                    List<Recognizer.Recognition> mappedRecognitions =
-                            recognizer.recognizeImage(croppedBitmap,cropToFrameTransform);
+        lastProcessingTimeMs = SystemClock.uptimeMillis() - frame.getStartTime();
+        // For examining the actual TF input.
+        if (isDebug() || SAVE_PREVIEW_BITMAP) {
+            cropCopyBitmap = frame.renderDetectorInput();
+            if (SAVE_PREVIEW_BITMAP) {
+                ImageUtils.saveBitmap(cropCopyBitmap);
+            }
+        }
 
-                    lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
-                    tracker.trackResults(mappedRecognitions, luminanceCopy, currTimestamp);
-                    trackingOverlay.postInvalidate();
+        // The tracker reads the luminance in place on its own thread, so the recognizer can go
+        // on with the next frame meanwhile. The frame stays alive until both let go of it.
+        frame.retain();
+        boolean queued = runInBackground(() -> {
+            tracker.trackResults(recognitions, frame.getLuminance(), frame.getTimestamp());
+            recognizer.release(frame);
+            trackingOverlay.postInvalidate();
 
-                    requestRender();
-                    computingDetection = false;
-                });
+            requestRender();
+        });
+        if (!queued) {
+            recognizer.release(frame);
+        }
     }
 
     @Override
@@ -298,6 +306,15 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
         return DESIRED_PREVIEW_SIZE;
     }
 
+    /**
+     * Every frame of the recognition pipeline may hold on to its image, plus the image being
+     * processed and one for acquireLatestImage() to skip through.
+     */
+    @Override
+    protected int getMaxImages() {
+        return Recognizer.FRAME_POOL_SIZE + 2;
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
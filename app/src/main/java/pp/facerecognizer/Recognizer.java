@@ -18,28 +18,74 @@ package pp.facerecognizer;
 import android.content.ContentResolver;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.media.Image;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 
+import java.io.File;
 import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import pp.facerecognizer.env.CropSink;
 import pp.facerecognizer.env.FileUtils;
+import pp.facerecognizer.env.ImageUtils;
+import pp.facerecognizer.env.Logger;
+import pp.facerecognizer.env.YuvPlanes;
 import pp.facerecognizer.ml.BlazeFace;
+import pp.facerecognizer.ml.Classifier;
 import pp.facerecognizer.ml.FaceNet;
+import pp.facerecognizer.ml.HnswClassifier;
+import pp.facerecognizer.ml.InterpreterConfig;
 import pp.facerecognizer.ml.LibSVM;
+import pp.facerecognizer.ml.NearestNeighbor;
 
 /**
  * Generic interface for interacting with different recognition engines.
  */
 public class Recognizer {
+    // Opt-in capture of aligned face crops for model debugging.
+    private static final boolean SAVE_FACE_CROPS = false;
+    private static final int CROP_SINK_CAPACITY = 4;
+    private static final int CROP_SINK_SAMPLE_RATE = 30;
+    private static final int CROP_SINK_MAX_FILES = 100;
+
+    static final int FRAME_POOL_SIZE = 4;
+    private static final int BYTE_SIZE_OF_FLOAT = 4;
+
+    // A quantized FaceNet is only used if it classifies the saved face crops like the float
+    // model does. Without enough crops to tell, the float model is kept.
+    private static final FaceNet.Precision FACENET_PRECISION = FaceNet.Precision.FLOAT;
+    private static final float MIN_QUANTIZED_AGREEMENT = 0.95f;
+    private static final int MIN_VERIFICATION_FACES = 20;
+
+    // The SVM needs a retrain on every enrollment. Nearest neighbour enrolls instantly and
+    // reports faces further than UNKNOWN_DISTANCE (L2 between unit embeddings) as unknown;
+    // the HNSW graph does the same without scanning the whole gallery per face.
+    private enum ClassifierType { SVM, NEAREST_NEIGHBOR, HNSW }
+    private static final ClassifierType CLASSIFIER = ClassifierType.SVM;
+    private static final int NEAREST_NEIGHBOR_K = 0; // 0 compares against class centroids
+    private static final float UNKNOWN_DISTANCE = 1.1f;
+    private static final String UNKNOWN_NAME = "Unknown";
+    private static final int TOP_K = 3; // the prediction and its runners-up
+
+    private static final Logger LOGGER = new Logger();
+
     /**
      * An immutable result returned by a Classifier describing what was recognized.
      */
@@ -63,12 +109,36 @@ public class Recognizer {
         /** Optional location within the source image for the location of the recognized object. */
         private RectF location;
 
+        /** The next most likely identities of the same face, best first, without a location. */
+        private final List<Recognition> runnersUp;
+
+        /** The uptime at which the identity was computed, kept when it is recalled. */
+        private final long recognizedAt;
+
         Recognition(
                 final String id, final String title, final Float confidence, final RectF location) {
+            this(id, title, confidence, location, Collections.emptyList());
+        }
+
+        Recognition(
+                final String id, final String title, final Float confidence, final RectF location,
+                final List<Recognition> runnersUp) {
             this.id = id;
             this.title = title;
             this.confidence = confidence;
             this.location = location;
+            this.runnersUp = runnersUp;
+            this.recognizedAt = SystemClock.uptimeMillis();
+        }
+
+        /** The identity of a recognition that was already known, found at a new location. */
+        Recognition(final Recognition identity, final RectF location) {
+            this.id = identity.id;
+            this.title = identity.title;
+            this.confidence = identity.confidence;
+            this.location = location;
+            this.runnersUp = identity.runnersUp;
+            this.recognizedAt = identity.recognizedAt;
         }
 
         public String getId() {
@@ -84,7 +154,15 @@ public class Recognizer {
         }
 
         public RectF getLocation() {
-            return new RectF(location);
+            return location != null ? new RectF(location) : null;
+        }
+
+        public List<Recognition> getRunnersUp() {
+            return runnersUp;
+        }
+
+        public long getRecognizedAt() {
+            return recognizedAt;
         }
 
         @Override
@@ -110,28 +188,378 @@ public class Recognizer {
         }
     }
 
+    /** Receives the recognitions of a submitted frame. */
+    interface Callback {
+        void onRecognized(Frame frame, List<Recognition> recognitions);
+    }
+
+    /** Knows the identities of faces that are already being followed. */
+    interface KnownFaces {
+        /**
+         * @param location A detected face, mapped onto the preview frame.
+         * @return The recognition to reuse for the face, or null to recognize it.
+         */
+        Recognition recall(RectF location);
+    }
+
+    /**
+     * A camera frame travelling through the pipeline. Its buffers are preallocated and owned
+     * by one stage at a time, so the caller must not touch it after {@link #submit} until the
+     * callback runs.
+     *
+     * The frame is reference counted so that it can outlive the callback without being
+     * copied: whoever {@link #retain()}s it shares it read-only with the pipeline, and it only
+     * goes back to the pool, closing its camera image, once every holder has called
+     * {@link Recognizer#release(Frame)}.
+     */
+    static class Frame {
+        // The pipeline holds one reference from obtainFrame() until the callback returned.
+        private final AtomicInteger references = new AtomicInteger();
+
+        // The camera image, held until recognition so that faces are cropped at full resolution.
+        private Image source;
+        private final YuvPlanes image = new YuvPlanes();
+        // Direct, BlazeFace reads it from native code.
+        private final FloatBuffer detectorInput = ByteBuffer
+                .allocateDirect(BlazeFace.INPUT_SIZE_WIDTH * BlazeFace.INPUT_SIZE_HEIGHT * 3
+                        * BYTE_SIZE_OF_FLOAT)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+
+        private long timestamp;
+        private long startTime;
+        private Matrix matrix;
+        private KnownFaces knownFaces;
+        private Callback callback;
+
+        // The detector reuses its results, so they are copied into the frame.
+        private RectF[] faces = new RectF[0];
+        private final List<Rect> rects = new ArrayList<>();
+        private final List<Rect> rectPool = new ArrayList<>();
+
+        // The faces on the preview frame, and the identities known for them already. Only
+        // the faces without one are embedded and classified.
+        private RectF[] locations = new RectF[0];
+        private Recognition[] recalled = new Recognition[0];
+        private final List<Rect> unknownRects = new ArrayList<>();
+
+        // Copied out of FaceNet so the faces are classified without holding the model.
+        private FloatBuffer[] embeddings = new FloatBuffer[0];
+
+        private void setFaces(List<RectF> detections) {
+            int count = detections.size();
+            if (faces.length < count) {
+                RectF[] grown = Arrays.copyOf(faces, count);
+                for (int i = faces.length; i < count; ++i) {
+                    grown[i] = new RectF();
+                }
+                faces = grown;
+            }
+
+            // FaceNet crops the faces out of the upright camera image rather than the input.
+            float scaleX = image.getUprightWidth() / (float) BlazeFace.INPUT_SIZE_WIDTH;
+            float scaleY = image.getUprightHeight() / (float) BlazeFace.INPUT_SIZE_HEIGHT;
+
+            rects.clear();
+            for (int i = 0; i < count; ++i) {
+                RectF face = faces[i];
+                face.set(detections.get(i));
+                if (rectPool.size() <= i) {
+                    rectPool.add(new Rect());
+                }
+                Rect rect = rectPool.get(i);
+                rect.set(Math.round(face.left * scaleX), Math.round(face.top * scaleY),
+                        Math.round(face.right * scaleX), Math.round(face.bottom * scaleY));
+                rects.add(rect);
+            }
+        }
+
+        private void recall() {
+            int count = rects.size();
+            if (locations.length < count) {
+                locations = new RectF[count];
+                recalled = new Recognition[count];
+            }
+
+            unknownRects.clear();
+            for (int i = 0; i < count; ++i) {
+                // A new rect each time, the recognition keeps it.
+                locations[i] = new RectF();
+                matrix.mapRect(locations[i], faces[i]);
+
+                recalled[i] = knownFaces != null ? knownFaces.recall(locations[i]) : null;
+                if (recalled[i] == null) {
+                    unknownRects.add(rects.get(i));
+                }
+            }
+        }
+
+        private void setEmbeddings(FaceNet faceNet, int count) {
+            if (embeddings.length < count) {
+                FloatBuffer[] grown = Arrays.copyOf(embeddings, count);
+                for (int i = embeddings.length; i < count; ++i) {
+                    // Direct, the SVM reads the embedding from native code.
+                    grown[i] = ByteBuffer
+                            .allocateDirect(FaceNet.EMBEDDING_SIZE * BYTE_SIZE_OF_FLOAT)
+                            .order(ByteOrder.nativeOrder())
+                            .asFloatBuffer();
+                }
+                embeddings = grown;
+            }
+
+            for (int i = 0; i < count; ++i) {
+                embeddings[i].clear();
+                embeddings[i].put(faceNet.getEmbedding(i));
+                embeddings[i].rewind();
+            }
+        }
+
+        /**
+         * Hands a camera image to the frame, which reads its planes in place and closes it
+         * when the frame is released. Nothing is converted here, the detector input is derived
+         * in the detection stage and RGB only for the faces found.
+         *
+         * @param rotation The clockwise rotation that makes the image upright.
+         */
+        void setImage(Image source, int rotation) {
+            releaseImage();
+            this.source = source;
+
+            Image.Plane[] planes = source.getPlanes();
+            image.set(planes[0].getBuffer(), planes[1].getBuffer(), planes[2].getBuffer(),
+                    source.getWidth(), source.getHeight(), planes[0].getRowStride(),
+                    planes[1].getRowStride(), planes[1].getPixelStride(), rotation);
+        }
+
+        /** Gives the image back to the camera, its planes must not be read any more. */
+        private void releaseImage() {
+            if (source != null) {
+                source.close();
+                source = null;
+            }
+        }
+
+        /** The luminance handed to the tracker, the Y plane of the image. */
+        ByteBuffer getLuminance() {
+            return image.getY();
+        }
+
+        /** Renders the {@link BlazeFace} input into a new bitmap, for debugging only. */
+        Bitmap renderDetectorInput() {
+            final int size = BlazeFace.INPUT_SIZE_WIDTH * BlazeFace.INPUT_SIZE_HEIGHT;
+            int[] pixels = new int[size];
+            for (int i = 0, j = 0; i < size; ++i, j += 3) {
+                int r = Math.round((detectorInput.get(j) + 1) * 127.5f);
+                int g = Math.round((detectorInput.get(j + 1) + 1) * 127.5f);
+                int b = Math.round((detectorInput.get(j + 2) + 1) * 127.5f);
+                pixels[i] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+            return Bitmap.createBitmap(pixels,
+                    BlazeFace.INPUT_SIZE_WIDTH, BlazeFace.INPUT_SIZE_HEIGHT, Config.ARGB_8888);
+        }
+
+        /** Keeps the frame and its image alive, to be balanced by {@link #release(Frame)}. */
+        Frame retain() {
+            references.incrementAndGet();
+            return this;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        /** The uptime at which the frame was submitted. */
+        long getStartTime() {
+            return startTime;
+        }
+    }
+
+    /**
+     * A worker thread fed through a single slot. Offering a frame while the previous one is
+     * still waiting replaces it, so a slow stage always resumes with the latest frame.
+     */
+    private abstract static class Stage implements Runnable {
+        private final Thread thread;
+        private Frame pending;
+
+        Stage(String name) {
+            thread = new Thread(this, name);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        /** Queues a frame and returns the one it displaced, if any. */
+        synchronized Frame offer(Frame frame) {
+            Frame displaced = pending;
+            pending = frame;
+            notifyAll();
+            return displaced;
+        }
+
+        /** Takes back the frame waiting for this stage, if any. */
+        synchronized Frame reclaim() {
+            Frame frame = pending;
+            pending = null;
+            return frame;
+        }
+
+        private synchronized Frame take() throws InterruptedException {
+            while (pending == null) {
+                wait();
+            }
+            Frame frame = pending;
+            pending = null;
+            return frame;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    process(take());
+                }
+            } catch (InterruptedException e) {
+                LOGGER.d("Stage %s stopped", thread.getName());
+            }
+        }
+
+        abstract void process(Frame frame);
+
+        void close() {
+            thread.interrupt();
+        }
+    }
+
     private static Recognizer recognizer;
 
     private BlazeFace blazeFace;
     private FaceNet faceNet;
     private LibSVM svm;
+    // Thread safe, recognition and enrollment share it without a lock.
+    private Classifier classifier;
+    private CropSink cropSink;
+
+    // One frame being filled or waiting for detection, one in each stage and one still held
+    // by the tracker.
+    private final BlockingQueue<Frame> freeFrames = new ArrayBlockingQueue<>(FRAME_POOL_SIZE);
+    private final Stage detectStage = new Stage("Detect") {
+        @Override
+        void process(Frame frame) {
+            try {
+                detect(frame);
+            } catch (RuntimeException e) {
+                // The frame goes back to the pool, the stage goes on with the next one.
+                LOGGER.e(e, "Failed to detect faces in frame %d", frame.timestamp);
+                release(frame);
+            }
+        }
+    };
+    private final Stage recognizeStage = new Stage("Recognize") {
+        @Override
+        void process(Frame frame) {
+            try {
+                recognize(frame);
+            } catch (RuntimeException e) {
+                LOGGER.e(e, "Failed to recognize faces in frame %d", frame.timestamp);
+                release(frame);
+            }
+        }
+    };
 
     private List<String> classNames;
 
+    // Ranked predictions of one face, only touched by the recognize stage.
+    private final int[] topLabels = new int[TOP_K];
+    private final float[] topProbs = new float[TOP_K];
+
     private Recognizer() {}
 
     static Recognizer getInstance (AssetManager assetManager) throws Exception {
+        return getInstance(assetManager, null);
+    }
+
+    private static Classifier createClassifier(LibSVM svm) {
+        switch (CLASSIFIER) {
+            case NEAREST_NEIGHBOR:
+                return new NearestNeighbor(NEAREST_NEIGHBOR_K, NearestNeighbor.Metric.L2,
+                        UNKNOWN_DISTANCE, FaceNet.EMBEDDING_SIZE, svm.getStore());
+            case HNSW:
+                return new HnswClassifier(UNKNOWN_DISTANCE, FaceNet.EMBEDDING_SIZE, svm.getStore(),
+                        new File(FileUtils.ROOT + File.separator + FileUtils.INDEX_FILE));
+            default:
+                return svm;
+        }
+    }
+
+    /**
+     * @param config How to set up both interpreters, or null to probe each model for its
+     *               fastest configuration on this device.
+     */
+    static Recognizer getInstance (AssetManager assetManager, InterpreterConfig config) throws Exception {
         if (recognizer != null) return recognizer;
 
         recognizer = new Recognizer();
-        recognizer.blazeFace = BlazeFace.create(assetManager);
-        recognizer.faceNet = FaceNet.create(assetManager);
+        recognizer.blazeFace = BlazeFace.create(assetManager, config);
         recognizer.svm = LibSVM.getInstance();
+        // The classifier in use is the one a quantized FaceNet has to agree with.
+        recognizer.classifier = createClassifier(recognizer.svm);
+        recognizer.faceNet = createFaceNet(assetManager, config, recognizer.classifier);
         recognizer.classNames = FileUtils.readLabel(FileUtils.LABEL_FILE);
 
+        if (SAVE_FACE_CROPS) {
+            recognizer.cropSink = new CropSink(
+                    CROP_SINK_CAPACITY, CROP_SINK_SAMPLE_RATE, CROP_SINK_MAX_FILES);
+            recognizer.faceNet.setCropSink(recognizer.cropSink);
+        }
+
+        for (int i = 0; i < FRAME_POOL_SIZE; ++i) {
+            recognizer.freeFrames.add(new Frame());
+        }
+        recognizer.detectStage.start();
+        recognizer.recognizeStage.start();
+
         return recognizer;
     }
 
+    private static FaceNet createFaceNet(
+            AssetManager assetManager, InterpreterConfig config, Classifier classifier) {
+        FaceNet reference = FaceNet.create(assetManager, config);
+        if (FACENET_PRECISION == FaceNet.Precision.FLOAT) {
+            return reference;
+        }
+
+        List<Bitmap> faces = FileUtils.loadBitmaps(CropSink.FILE_PREFIX);
+        if (faces.size() < MIN_VERIFICATION_FACES) {
+            LOGGER.w("Only %d face crops to verify the %s model with, keeping the float model",
+                    faces.size(), FACENET_PRECISION);
+            return reference;
+        }
+
+        FaceNet candidate;
+        try {
+            candidate = FaceNet.create(assetManager, config, FACENET_PRECISION);
+        } catch (RuntimeException e) {
+            LOGGER.w("Cannot load the %s model, keeping the float model: %s", FACENET_PRECISION, e);
+            return reference;
+        }
+
+        float agreement = FaceNet.agreement(candidate, reference, classifier, faces);
+        for (Bitmap face : faces) {
+            face.recycle();
+        }
+        LOGGER.i("%s model agrees with the float model on %.1f%% of %d faces",
+                FACENET_PRECISION, agreement * 100, faces.size());
+
+        if (agreement < MIN_QUANTIZED_AGREEMENT) {
+            candidate.close();
+            return reference;
+        }
+        reference.close();
+        return candidate;
+    }
+
     CharSequence[] getClassNames() {
         CharSequence[] cs = new CharSequence[classNames.size() + 1];
         int idx = 1;
@@ -144,51 +572,134 @@ public class Recognizer {
         return cs;
     }
 
-    List<Recognition> recognizeImage(Bitmap bitmap, Matrix matrix) {
-        synchronized (this) {
-            List<RectF> faces = blazeFace.detect(bitmap);
-            final List<Recognition> mappedRecognitions = new LinkedList<>();
+    /**
+     * Takes a free frame to be filled with the next camera image, or null if every frame is
+     * still in flight. A frame that is waiting for detection is superseded by the new one.
+     */
+    Frame obtainFrame() {
+        Frame frame = freeFrames.poll();
+        if (frame != null) {
+            frame.references.set(1);
+        } else {
+            // Nobody but the pipeline has seen a frame that never got detected, so it is
+            // reused with the pipeline's reference.
+            frame = detectStage.reclaim();
+            if (frame != null) {
+                frame.knownFaces = null;
+                frame.callback = null;
+                frame.releaseImage();
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Feeds a filled frame into the pipeline. The callback runs on the recognition thread,
+     * after which the frame goes back to the pool unless the callback retained it.
+     *
+     * @param frame A frame from {@link #obtainFrame()} holding a camera image.
+     * @param timestamp The camera timestamp of the frame.
+     * @param matrix Maps the detector input onto the preview frame, undoing the rotation.
+     * @param knownFaces Keeps faces it knows from being recognized again, or null to
+     *                   recognize every face.
+     * @param callback Receives the recognitions of the frame.
+     */
+    void submit(Frame frame, long timestamp, Matrix matrix, KnownFaces knownFaces,
+                Callback callback) {
+        frame.timestamp = timestamp;
+        frame.startTime = SystemClock.uptimeMillis();
+        frame.matrix = matrix;
+        frame.knownFaces = knownFaces;
+        frame.callback = callback;
+
+        release(detectStage.offer(frame));
+    }
+
+    /**
+     * Drops a reference to a frame, the last one puts it back into the pool. Null is ignored,
+     * so that the frame a stage replaced can be passed straight in.
+     */
+    void release(Frame frame) {
+        if (frame != null && frame.references.decrementAndGet() == 0) {
+            frame.knownFaces = null;
+            frame.callback = null;
+            frame.releaseImage();
+            freeFrames.offer(frame);
+        }
+    }
+
+    private void detect(Frame frame) {
+        // Rotation, downscaling and normalization happen in the same pass over the planes.
+        ImageUtils.convertYUV420ToNormalizedRGB(frame.image,
+                BlazeFace.INPUT_SIZE_WIDTH, BlazeFace.INPUT_SIZE_HEIGHT, frame.detectorInput);
+        synchronized (blazeFace) {
+            frame.setFaces(blazeFace.detect(frame.detectorInput));
+        }
+
+        release(recognizeStage.offer(frame));
+    }
+
+    private void recognize(Frame frame) {
+        final List<Recognition> mappedRecognitions = new LinkedList<>();
+        frame.recall();
 
-            for (RectF rectF : faces) {
-                Rect rect = new Rect();
-                rectF.round(rect);
+        synchronized (faceNet) {
+            if (!frame.unknownRects.isEmpty()) {
+                // Embed every new face in the frame with a single interpreter invocation.
+                faceNet.getEmbeddings(frame.image, frame.unknownRects);
+                frame.setEmbeddings(faceNet, frame.unknownRects.size());
+            }
+        }
 
-                FloatBuffer buffer = faceNet.getEmbeddings(bitmap, rect);
-                LibSVM.Prediction prediction = svm.predict(buffer);
+        for (int i = 0, embedding = 0; i < frame.rects.size(); ++i) {
+            RectF location = frame.locations[i];
+            if (frame.recalled[i] != null) {
+                mappedRecognitions.add(new Recognition(frame.recalled[i], location));
+                continue;
+            }
 
-                matrix.mapRect(rectF);
-                int index = prediction.getIndex();
+            int count = classifier.predict(frame.embeddings[embedding++], topLabels, topProbs);
 
-                String name = classNames.get(index);
-                Recognition result =
-                        new Recognition("" + index, name, prediction.getProb(), rectF);
-                mappedRecognitions.add(result);
+            List<Recognition> runnersUp = new ArrayList<>(count - 1);
+            for (int n = 1; n < count; ++n) {
+                runnersUp.add(new Recognition(
+                        "" + topLabels[n], className(topLabels[n]), topProbs[n], null));
             }
-            return mappedRecognitions;
+            Recognition result = new Recognition("" + topLabels[0],
+                    className(topLabels[0]), topProbs[0], location, runnersUp);
+            mappedRecognitions.add(result);
         }
 
+        frame.callback.onRecognized(frame, mappedRecognitions);
+        release(frame);
+    }
+
+    private String className(int index) {
+        return index == Classifier.UNKNOWN ? UNKNOWN_NAME : classNames.get(index);
     }
 
     void updateData(int label, ContentResolver contentResolver, ArrayList<Uri> uris) throws Exception {
-        synchronized (this) {
-            ArrayList<float[]> list = new ArrayList<>();
+        ArrayList<float[]> list = new ArrayList<>();
 
-            for (Uri uri : uris) {
-                Bitmap bitmap = getBitmapFromUri(contentResolver, uri);
-                List<RectF> faces = blazeFace.detect(bitmap);
+        for (Uri uri : uris) {
+            Bitmap bitmap = getBitmapFromUri(contentResolver, uri);
 
-                Rect rect = new Rect();
+            Rect rect = new Rect();
+            synchronized (blazeFace) {
+                List<RectF> faces = blazeFace.detect(bitmap);
                 if (!faces.isEmpty()) {
                     faces.get(0).round(rect);
                 }
+            }
 
-                float[] emb_array = new float[FaceNet.EMBEDDING_SIZE];
+            float[] emb_array = new float[FaceNet.EMBEDDING_SIZE];
+            synchronized (faceNet) {
                 faceNet.getEmbeddings(bitmap, rect).get(emb_array);
-                list.add(emb_array);
             }
-
-            svm.train(label, list);
+            list.add(emb_array);
         }
+
+        classifier.enroll(label, list);
     }
 
     int addPerson(String name) {
@@ -208,11 +719,17 @@ public class Recognizer {
         return bitmap;
     }
 
-    void enableStatLogging(final boolean debug){
-    }
-
     void close() {
-        blazeFace.close();
-        faceNet.close();
+        detectStage.close();
+        recognizeStage.close();
+        synchronized (blazeFace) {
+            blazeFace.close();
+        }
+        synchronized (faceNet) {
+            faceNet.close();
+        }
+        if (cropSink != null) {
+            cropSink.close();
+        }
     }
 }
@@ -0,0 +1,118 @@
+package pp.facerecognizer.env;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Rect;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Asynchronously dumps a sample of face crops to disk for model debugging.
+ *
+ * Crops are copied into a fixed ring of slots on the calling thread and compressed by a
+ * background writer. When every slot is busy the crop is dropped rather than blocking the
+ * caller, and file names wrap around after {@code maxFiles} so storage stays bounded.
+ */
+public class CropSink {
+    private static final Logger LOGGER = new Logger();
+
+    public static final String FILE_PREFIX = "crop_";
+
+    private static class Slot {
+        private int[] pixels = new int[0];
+        private int width;
+        private int height;
+    }
+
+    private final BlockingQueue<Slot> freeSlots;
+    private final BlockingQueue<Slot> pendingSlots;
+
+    private final int sampleRate;
+    private final int maxFiles;
+
+    private final Thread writer;
+
+    private int offered = 0;
+    private int written = 0;
+
+    /**
+     * @param capacity Number of crops that can wait for the writer at once.
+     * @param sampleRate Keep one out of this many offered crops.
+     * @param maxFiles Number of files to rotate through.
+     */
+    public CropSink(int capacity, int sampleRate, int maxFiles) {
+        this.sampleRate = Math.max(sampleRate, 1);
+        this.maxFiles = Math.max(maxFiles, 1);
+
+        freeSlots = new ArrayBlockingQueue<>(capacity);
+        pendingSlots = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < capacity; ++i) {
+            freeSlots.add(new Slot());
+        }
+
+        writer = new Thread(this::drain, "CropSink");
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+    }
+
+    /**
+     * Offers a crop of an ARGB 8888 image. Never blocks.
+     *
+     * @param pixels The pixels of the whole image.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param rect The crop within the image.
+     */
+    public void offer(int[] pixels, int width, int height, Rect rect) {
+        if (offered++ % sampleRate != 0) {
+            return;
+        }
+
+        int left = Math.max(rect.left, 0);
+        int top = Math.max(rect.top, 0);
+        int right = Math.min(rect.right, width);
+        int bottom = Math.min(rect.bottom, height);
+        if (left >= right || top >= bottom) {
+            return;
+        }
+
+        Slot slot = freeSlots.poll();
+        if (slot == null) {
+            return;
+        }
+
+        slot.width = right - left;
+        slot.height = bottom - top;
+        if (slot.pixels.length < slot.width * slot.height) {
+            slot.pixels = new int[slot.width * slot.height];
+        }
+        for (int y = 0; y < slot.height; ++y) {
+            System.arraycopy(pixels, (top + y) * width + left,
+                    slot.pixels, y * slot.width, slot.width);
+        }
+
+        pendingSlots.add(slot);
+    }
+
+    private void drain() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Slot slot = pendingSlots.take();
+
+                Bitmap bitmap = Bitmap.createBitmap(
+                        slot.pixels, 0, slot.width, slot.width, slot.height, Config.ARGB_8888);
+                freeSlots.add(slot);
+
+                FileUtils.saveBitmap(bitmap, FILE_PREFIX + (written++ % maxFiles) + ".png");
+                bitmap.recycle();
+            }
+        } catch (InterruptedException e) {
+            LOGGER.d("Crop writer stopped");
+        }
+    }
+
+    public void close() {
+        writer.interrupt();
+    }
+}
@@ -2,6 +2,7 @@ package pp.facerecognizer.env;
 
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.os.Environment;
 
 import java.io.BufferedWriter;
@@ -24,6 +25,8 @@ public class FileUtils {
     public static final String DATA_FILE = "data";
     public static final String MODEL_FILE = "model";
     public static final String LABEL_FILE = "label";
+    public static final String STORE_FILE = "embeddings";
+    public static final String INDEX_FILE = "embeddings.hnsw";
 
     /**
      * Saves a Bitmap object to disk for analysis.
@@ -111,4 +114,23 @@ public class FileUtils {
 
         return list;
     }
+
+    /**
+     * Loads the bitmaps saved by {@link #saveBitmap} whose name starts with the prefix.
+     */
+    public static ArrayList<Bitmap> loadBitmaps(String prefix) {
+        ArrayList<Bitmap> bitmaps = new ArrayList<>();
+        File[] files = new File(ROOT).listFiles((dir, name) -> name.startsWith(prefix));
+        if (files == null) {
+            return bitmaps;
+        }
+
+        for (File file : files) {
+            Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+            if (bitmap != null) {
+                bitmaps.add(bitmap);
+            }
+        }
+        return bitmaps;
+    }
 }
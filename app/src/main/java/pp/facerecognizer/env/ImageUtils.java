@@ -17,7 +17,9 @@ package pp.facerecognizer.env;
 
 import android.graphics.Bitmap;
 import android.graphics.Matrix;
+import android.graphics.Rect;
 
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 
 /**
@@ -165,6 +167,143 @@ public class ImageUtils {
     }
 
 
+    /**
+     * Rotates a camera image upright, area-averages it down and normalizes it into the float
+     * input of a detector in a single pass, without an RGB frame in between.
+     *
+     * @param outWidth The width of the input, which spans the whole upright image.
+     * @param outHeight The height of the input.
+     * @param output A direct buffer for outWidth * outHeight interleaved RGB floats in [-1, 1].
+     * @throws IllegalArgumentException If the planes or the output are not direct buffers.
+     */
+    public static void convertYUV420ToNormalizedRGB(
+            YuvPlanes image, int outWidth, int outHeight, FloatBuffer output) {
+        if (useNativeConversion) {
+            try {
+                convertYUV420ToNormalizedRGB(image.getY(), image.getU(), image.getV(),
+                        image.getWidth(), image.getHeight(), image.getYRowStride(),
+                        image.getUvRowStride(), image.getUvPixelStride(), image.getRotation(),
+                        outWidth, outHeight, output);
+                return;
+            } catch (UnsatisfiedLinkError e) {
+                LOGGER.w(
+                        "Native YUV420 -> normalized RGB implementation not found, falling back to Java implementation");
+                useNativeConversion = false;
+            }
+        }
+
+        final int uprightWidth = image.getUprightWidth();
+        final int uprightHeight = image.getUprightHeight();
+
+        int i = 0;
+        for (int oy = 0; oy < outHeight; ++oy) {
+            int top = oy * uprightHeight / outHeight;
+            int bottom = Math.max((oy + 1) * uprightHeight / outHeight, top + 1);
+
+            for (int ox = 0; ox < outWidth; ++ox) {
+                int left = ox * uprightWidth / outWidth;
+                int right = Math.max((ox + 1) * uprightWidth / outWidth, left + 1);
+
+                int sumY = 0;
+                int sumU = 0;
+                int sumV = 0;
+                for (int uy = top; uy < bottom; ++uy) {
+                    for (int ux = left; ux < right; ++ux) {
+                        int sx = sensorX(image, ux, uy);
+                        int sy = sensorY(image, ux, uy);
+                        int uvOffset = (sy >> 1) * image.getUvRowStride()
+                                + (sx >> 1) * image.getUvPixelStride();
+                        sumY += 0xff & image.getY().get(sy * image.getYRowStride() + sx);
+                        sumU += 0xff & image.getU().get(uvOffset);
+                        sumV += 0xff & image.getV().get(uvOffset);
+                    }
+                }
+
+                int count = (right - left) * (bottom - top);
+                int p = YUV2RGB(
+                        (sumY + count / 2) / count,
+                        (sumU + count / 2) / count,
+                        (sumV + count / 2) / count);
+                output.put(i++, ((p >> 16) & 0xFF) / 127.5f - 1);
+                output.put(i++, ((p >> 8) & 0xFF) / 127.5f - 1);
+                output.put(i++, (p & 0xFF) / 127.5f - 1);
+            }
+        }
+    }
+
+    /**
+     * Converts a rectangle of the upright camera image to ARGB 8888, leaving the rest of the
+     * image unconverted. Pixels outside of the image repeat the nearest edge pixel.
+     *
+     * @param rect The rectangle, in upright coordinates.
+     * @param output Receives rect.width() * rect.height() pixels, one row after the other.
+     * @throws IllegalArgumentException If the planes are not direct buffers.
+     */
+    public static void cropYUV420ToARGB8888(YuvPlanes image, Rect rect, int[] output) {
+        if (useNativeConversion) {
+            try {
+                cropYUV420ToARGB8888(image.getY(), image.getU(), image.getV(),
+                        image.getWidth(), image.getHeight(), image.getYRowStride(),
+                        image.getUvRowStride(), image.getUvPixelStride(), image.getRotation(),
+                        rect.left, rect.top, rect.right, rect.bottom, output);
+                return;
+            } catch (UnsatisfiedLinkError e) {
+                LOGGER.w(
+                        "Native YUV420 crop implementation not found, falling back to Java implementation");
+                useNativeConversion = false;
+            }
+        }
+
+        final int uprightWidth = image.getUprightWidth();
+        final int uprightHeight = image.getUprightHeight();
+
+        int i = 0;
+        for (int y = rect.top; y < rect.bottom; ++y) {
+            int uy = Math.min(Math.max(y, 0), uprightHeight - 1);
+
+            for (int x = rect.left; x < rect.right; ++x) {
+                int ux = Math.min(Math.max(x, 0), uprightWidth - 1);
+
+                int sx = sensorX(image, ux, uy);
+                int sy = sensorY(image, ux, uy);
+                int uvOffset = (sy >> 1) * image.getUvRowStride()
+                        + (sx >> 1) * image.getUvPixelStride();
+                output[i++] = YUV2RGB(
+                        0xff & image.getY().get(sy * image.getYRowStride() + sx),
+                        0xff & image.getU().get(uvOffset),
+                        0xff & image.getV().get(uvOffset));
+            }
+        }
+    }
+
+    /** The sensor column of a pixel of the upright image. */
+    private static int sensorX(YuvPlanes image, int ux, int uy) {
+        switch (image.getRotation()) {
+            case 90:
+                return uy;
+            case 180:
+                return image.getWidth() - 1 - ux;
+            case 270:
+                return image.getWidth() - 1 - uy;
+            default:
+                return ux;
+        }
+    }
+
+    /** The sensor row of a pixel of the upright image. */
+    private static int sensorY(YuvPlanes image, int ux, int uy) {
+        switch (image.getRotation()) {
+            case 90:
+                return image.getHeight() - 1 - ux;
+            case 180:
+                return image.getHeight() - 1 - uy;
+            case 270:
+                return ux;
+            default:
+                return uy;
+        }
+    }
+
     /**
      * Converts YUV420 semi-planar data to ARGB 8888 data using the supplied width and height. The
      * input and output must already be allocated and non-null. For efficiency, no error checking is
@@ -205,6 +344,36 @@ public class ImageUtils {
             int uvPixelStride,
             boolean halfSize);
 
+    private static native void convertYUV420ToNormalizedRGB(
+            ByteBuffer y,
+            ByteBuffer u,
+            ByteBuffer v,
+            int width,
+            int height,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            int rotation,
+            int outWidth,
+            int outHeight,
+            FloatBuffer output);
+
+    private static native void cropYUV420ToARGB8888(
+            ByteBuffer y,
+            ByteBuffer u,
+            ByteBuffer v,
+            int width,
+            int height,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            int rotation,
+            int left,
+            int top,
+            int right,
+            int bottom,
+            int[] output);
+
     /**
      * Converts YUV420 semi-planar data to RGB 565 data using the supplied width
      * and height. The input and output must already be allocated and non-null.
@@ -344,4 +513,107 @@ public class ImageUtils {
     }
 
     private static native float prewhiten(float[] input, int length, FloatBuffer output);
+
+    /**
+     * Crops a rectangle out of an ARGB 8888 image, bilinearly resizes it, unpacks it to
+     * interleaved RGB and prewhitens it into the output buffer in a single native pass.
+     * Samples outside of the image are clamped to the nearest edge pixel.
+     *
+     * @param input The ARGB 8888 pixels of the source image.
+     * @param width The width of the source image.
+     * @param height The height of the source image.
+     * @param rect The crop within the source image.
+     * @param outWidth The width of the resized crop.
+     * @param outHeight The height of the resized crop.
+     * @param output A direct buffer for outWidth * outHeight * 3 floats.
+     */
+    public static void cropResizePrewhiten(
+            int[] input, int width, int height, Rect rect,
+            int outWidth, int outHeight, FloatBuffer output) {
+        if (useNativeConversion) {
+            try {
+                ImageUtils.cropResizePrewhiten(input, width, height,
+                        rect.left, rect.top, rect.right, rect.bottom, outWidth, outHeight, output);
+                return;
+            } catch (UnsatisfiedLinkError e) {
+                LOGGER.w(
+                        "Native crop and prewhiten implementation not found, falling back to Java implementation");
+                useNativeConversion = false;
+            }
+        }
+
+        final float scaleX = rect.width() / (float) outWidth;
+        final float scaleY = rect.height() / (float) outHeight;
+        final float[] rgb = new float[outWidth * outHeight * 3];
+
+        int i = 0;
+        for (int y = 0; y < outHeight; ++y) {
+            float sy = Math.min(Math.max(rect.top + (y + 0.5f) * scaleY - 0.5f, 0), height - 1);
+            int y0 = (int) sy;
+            int y1 = Math.min(y0 + 1, height - 1);
+            float fy = sy - y0;
+
+            for (int x = 0; x < outWidth; ++x) {
+                float sx = Math.min(Math.max(rect.left + (x + 0.5f) * scaleX - 0.5f, 0), width - 1);
+                int x0 = (int) sx;
+                int x1 = Math.min(x0 + 1, width - 1);
+                float fx = sx - x0;
+
+                int p00 = input[y0 * width + x0];
+                int p01 = input[y0 * width + x1];
+                int p10 = input[y1 * width + x0];
+                int p11 = input[y1 * width + x1];
+
+                for (int shift = 16; shift >= 0; shift -= 8) {
+                    float upper = ((p00 >> shift) & 0xFF) * (1 - fx) + ((p01 >> shift) & 0xFF) * fx;
+                    float lower = ((p10 >> shift) & 0xFF) * (1 - fx) + ((p11 >> shift) & 0xFF) * fx;
+                    rgb[i++] = upper * (1 - fy) + lower * fy;
+                }
+            }
+        }
+
+        prewhiten(rgb, output);
+    }
+
+    private static native void cropResizePrewhiten(
+            int[] input, int width, int height,
+            int left, int top, int right, int bottom,
+            int outWidth, int outHeight, FloatBuffer output);
+
+    /**
+     * Quantizes floats for an 8 bit model input, {@code q = round(x / scale) + zeroPoint}
+     * saturated to the range of the type.
+     *
+     * @param input A direct buffer of floats, read from position 0 up to its limit.
+     * @param scale The quantization scale of the input tensor.
+     * @param zeroPoint The quantization zero point of the input tensor.
+     * @param signed Whether the tensor is int8 rather than uint8.
+     * @param output A direct buffer for one byte per input value.
+     */
+    public static void quantize(
+            FloatBuffer input, float scale, int zeroPoint, boolean signed, ByteBuffer output) {
+        final int length = input.limit();
+        final int min = signed ? Byte.MIN_VALUE : 0;
+        final int max = signed ? Byte.MAX_VALUE : 0xFF;
+
+        if (useNativeConversion) {
+            try {
+                ImageUtils.quantize(input, length, scale, zeroPoint, min, max, output);
+                return;
+            } catch (UnsatisfiedLinkError e) {
+                LOGGER.w(
+                        "Native quantize implementation not found, falling back to Java implementation");
+                useNativeConversion = false;
+            }
+        }
+
+        for (int i = 0; i < length; ++i) {
+            int value = Math.round(input.get(i) / scale) + zeroPoint;
+            output.put(i, (byte) Math.min(Math.max(value, min), max));
+        }
+    }
+
+    private static native void quantize(
+            FloatBuffer input, int length, float scale, int zeroPoint, int min, int max,
+            ByteBuffer output);
 }
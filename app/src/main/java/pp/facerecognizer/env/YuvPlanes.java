@@ -0,0 +1,89 @@
+package pp.facerecognizer.env;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A YUV 420 camera image: three direct plane buffers with the strides the camera delivered
+ * them in, and the clockwise rotation that makes the image upright. The coordinates
+ * {@link ImageUtils} takes for it are those of the upright image.
+ */
+public class YuvPlanes {
+    private ByteBuffer y;
+    private ByteBuffer u;
+    private ByteBuffer v;
+
+    private int width;
+    private int height;
+    private int yRowStride;
+    private int uvRowStride;
+    private int uvPixelStride;
+    private int rotation;
+
+    /**
+     * Points at the planes of a camera image, which are read in place and so are only valid
+     * until the image is closed.
+     *
+     * @param rotation The clockwise rotation that makes the image upright, a multiple of 90.
+     */
+    public void set(
+            ByteBuffer y, ByteBuffer u, ByteBuffer v,
+            int width, int height, int yRowStride, int uvRowStride, int uvPixelStride,
+            int rotation) {
+        this.y = y;
+        this.u = u;
+        this.v = v;
+
+        this.width = width;
+        this.height = height;
+        this.yRowStride = yRowStride;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+        this.rotation = ((rotation % 360) + 360) % 360;
+    }
+
+    public ByteBuffer getY() {
+        return y;
+    }
+
+    public ByteBuffer getU() {
+        return u;
+    }
+
+    public ByteBuffer getV() {
+        return v;
+    }
+
+    /** The width of the sensor image, before rotation. */
+    public int getWidth() {
+        return width;
+    }
+
+    /** The height of the sensor image, before rotation. */
+    public int getHeight() {
+        return height;
+    }
+
+    public int getYRowStride() {
+        return yRowStride;
+    }
+
+    public int getUvRowStride() {
+        return uvRowStride;
+    }
+
+    public int getUvPixelStride() {
+        return uvPixelStride;
+    }
+
+    public int getRotation() {
+        return rotation;
+    }
+
+    public int getUprightWidth() {
+        return rotation % 180 == 0 ? width : height;
+    }
+
+    public int getUprightHeight() {
+        return rotation % 180 == 0 ? height : width;
+    }
+}
@@ -31,6 +31,9 @@ public class BlazeFace {
     private static final int BYTE_SIZE_OF_FLOAT = 4;
 
     private static final float MIN_SCORE_THRESH = 0.95f;
+    // sigmoid(x) > MIN_SCORE_THRESH  <=>  x > logit(MIN_SCORE_THRESH)
+    private static final float MIN_RAW_SCORE_THRESH =
+            (float) Math.log(MIN_SCORE_THRESH / (1.0 - MIN_SCORE_THRESH));
 
     private static final int[] strides = {8, 16, 16, 16};
 
@@ -49,45 +52,40 @@ public class BlazeFace {
 
     private static final float MIN_SUPPRESSION_THRESHOLD = 0.3f;
 
+    // Anchors as a struct of arrays, computed once for all instances.
+    private static final float[] ANCHOR_X_CENTER = new float[NUM_BOXES];
+    private static final float[] ANCHOR_Y_CENTER = new float[NUM_BOXES];
+    private static final float[] ANCHOR_H = new float[NUM_BOXES];
+    private static final float[] ANCHOR_W = new float[NUM_BOXES];
+
+    static {
+        GenerateAnchors();
+    }
+
     // Pre-allocated buffers.
     private int[] intValues;
-    private float[][][][] floatValues;
+    private float[] floatValues;
+
+    private FloatBuffer inputBuffer;
     private Object[] inputArray;
 
     private FloatBuffer outputScores;
     private FloatBuffer outputBoxes;
     private Map<Integer, Object> outputMap;
 
-    private Interpreter interpreter;
-
-    private List<Anchor> anchors;
+    private float[] rawScores;
+    private int[] candidateIndices;
 
-    private static class Anchor {
-        private float x_center;
-        private float y_center;
-        private float h;
-        private float w;
-    }
-
-    private class Detection {
-        private RectF location;
-        private float score;
-
-        Detection(RectF location, float score) {
-            this.location = location;
-            this.score = score;
-        }
-    }
+    // Candidates surviving the score threshold, as (xmin, ymin, xmax, ymax) quadruples.
+    private float[] detectionBoxes;
+    private float[] detectionScores;
+    private int[] sortedIndices;
 
-    private class IndexedScore {
-        private int index;
-        private float score;
+    // Returned to the caller and reused on every call.
+    private List<RectF> results;
+    private List<RectF> locationPool;
 
-        IndexedScore(int index, float score) {
-            this.index = index;
-            this.score = score;
-        }
-    }
+    private Interpreter interpreter;
 
     /** Memory-map the model file in Assets. */
     private static ByteBuffer loadModelFile(AssetManager assets)
@@ -106,8 +104,8 @@ public class BlazeFace {
                 (max_scale - min_scale) * 1.0f * stride_index / (num_strides - 1.0f);
     }
 
-    private static List<Anchor> GenerateAnchors() {
-        List<Anchor> anchors = new ArrayList<>();
+    private static void GenerateAnchors() {
+        int anchor_index = 0;
         int layer_id = 0;
 
         while (layer_id < strides.length) {
@@ -154,40 +152,46 @@ public class BlazeFace {
                         float x_center = (x + ANCHOR_OFFSET_X) * 1.0f / feature_map_width;
                         float y_center = (y + ANCHOR_OFFSET_Y) * 1.0f / feature_map_height;
 
-                        Anchor new_anchor = new Anchor();
-                        new_anchor.x_center = x_center;
-                        new_anchor.y_center = y_center;
-                        new_anchor.w = 1.0f;
-                        new_anchor.h = 1.0f;
-
-                        anchors.add(new_anchor);
+                        ANCHOR_X_CENTER[anchor_index] = x_center;
+                        ANCHOR_Y_CENTER[anchor_index] = y_center;
+                        ANCHOR_W[anchor_index] = 1.0f;
+                        ANCHOR_H[anchor_index] = 1.0f;
+                        ++anchor_index;
                     }
                 }
             }
             layer_id = last_same_stride_layer;
         }
-        return anchors;
     }
 
     /**
      * Initializes a native TensorFlow session for classifying images.
      *
      * @param assetManager The asset manager to be used to load assets.
+     * @param config How to set up the interpreter, or null to pick the fastest of
+     *               {@link InterpreterConfig#candidates()}.
      */
     public static BlazeFace create(
-            final AssetManager assetManager) {
+            final AssetManager assetManager, final InterpreterConfig config) {
         final BlazeFace b = new BlazeFace();
 
         try {
-            b.interpreter = new Interpreter(loadModelFile(assetManager));
+            ByteBuffer model = loadModelFile(assetManager);
+            b.interpreter = config != null
+                    ? config.create(model)
+                    : InterpreterConfig.createFastest(model, InterpreterConfig.candidates());
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
 
         // Pre-allocate buffers.
         b.intValues = new int[INPUT_SIZE_WIDTH * INPUT_SIZE_HEIGHT];
-        b.floatValues = new float[1][INPUT_SIZE_HEIGHT][INPUT_SIZE_WIDTH][3];
-        b.inputArray = new Object[]{b.floatValues};
+        b.floatValues = new float[INPUT_SIZE_WIDTH * INPUT_SIZE_HEIGHT * 3];
+
+        b.inputBuffer = ByteBuffer.allocateDirect(INPUT_SIZE_WIDTH * INPUT_SIZE_HEIGHT * 3 * BYTE_SIZE_OF_FLOAT)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        b.inputArray = new Object[]{b.inputBuffer};
 
         b.outputScores = ByteBuffer.allocateDirect(NUM_BOXES * BYTE_SIZE_OF_FLOAT)
                 .order(ByteOrder.nativeOrder())
@@ -201,13 +205,26 @@ public class BlazeFace {
         b.outputMap.put(0, b.outputBoxes);
         b.outputMap.put(1, b.outputScores);
 
-        b.anchors = GenerateAnchors();
+        b.rawScores = new float[NUM_BOXES];
+        b.candidateIndices = new int[NUM_BOXES];
+
+        b.detectionBoxes = new float[NUM_BOXES * 4];
+        b.detectionScores = new float[NUM_BOXES];
+        b.sortedIndices = new int[NUM_BOXES];
+
+        b.results = new ArrayList<>();
+        b.locationPool = new ArrayList<>();
 
         return b;
     }
 
     private BlazeFace() {}
 
+    /**
+     * Detects faces in a {@link #INPUT_SIZE_WIDTH} x {@link #INPUT_SIZE_HEIGHT} bitmap.
+     *
+     * @return The face locations. The list and its rectangles are reused by the next call.
+     */
     public List<RectF> detect(Bitmap bitmap) {
         // Log this method so that it can be analyzed with systrace.
         Trace.beginSection("detect");
@@ -217,155 +234,162 @@ public class BlazeFace {
         // on the provided parameters.
         bitmap.getPixels(intValues, 0, INPUT_SIZE_WIDTH, 0, 0, INPUT_SIZE_WIDTH, INPUT_SIZE_HEIGHT);
 
-        for (int i = 0; i < INPUT_SIZE_HEIGHT; ++i) {
-            for (int j = 0; j < INPUT_SIZE_WIDTH; ++j) {
-                int p = intValues[i * INPUT_SIZE_WIDTH + j];
+        for (int i = 0, j = 0; i < intValues.length; ++i, j += 3) {
+            int p = intValues[i];
 
-                floatValues[0][i][j][2] = (p & 0xFF) / 127.5f - 1;
-                floatValues[0][i][j][1] = ((p >> 8) & 0xFF) / 127.5f - 1;
-                floatValues[0][i][j][0] = ((p >> 16) & 0xFF) / 127.5f - 1;
-            }
+            floatValues[j + 2] = (p & 0xFF) / 127.5f - 1;
+            floatValues[j + 1] = ((p >> 8) & 0xFF) / 127.5f - 1;
+            floatValues[j] = ((p >> 16) & 0xFF) / 127.5f - 1;
         }
+
+        // A single bulk copy into the native-order direct buffer the interpreter reads from.
+        inputBuffer.rewind();
+        inputBuffer.put(floatValues);
+        inputBuffer.rewind();
         Trace.endSection(); // preprocessBitmap
 
+        List<RectF> detections = detect(inputBuffer);
+        Trace.endSection(); // "detect"
+        return detections;
+    }
+
+    /**
+     * Detects faces in an input that is already preprocessed, such as one filled by
+     * {@link pp.facerecognizer.env.ImageUtils#convertYUV420ToNormalizedRGB}.
+     *
+     * @param input A direct buffer of {@link #INPUT_SIZE_WIDTH} x {@link #INPUT_SIZE_HEIGHT}
+     *              interleaved RGB floats in [-1, 1].
+     * @return The face locations. The list and its rectangles are reused by the next call.
+     */
+    public List<RectF> detect(FloatBuffer input) {
         // Run the inference call.
         Trace.beginSection("run");
+        input.rewind();
+        inputArray[0] = input;
         interpreter.runForMultipleInputsOutputs(inputArray, outputMap);
         Trace.endSection();
 
         outputScores.flip();
         outputBoxes.flip();
 
-        List<Detection> detections = new ArrayList<>();
+        // Threshold the raw logits first, only the survivors need the sigmoid and decoding.
+        outputScores.get(rawScores);
+        int numCandidates = 0;
         for (int i = 0; i < NUM_BOXES; i++) {
-            float score = outputScores.get(i);
-            score = score < -100.0f ? -100.0f : score;
+            if (rawScores[i] > MIN_RAW_SCORE_THRESH) {
+                candidateIndices[numCandidates++] = i;
+            }
+        }
+
+        int numDetections = 0;
+        for (int c = 0; c < numCandidates; c++) {
+            int i = candidateIndices[c];
+            float score = rawScores[i];
             score = score > 100.0f ? 100.0f : score;
             score = 1.0f / (1.0f + (float) Math.exp(-score));
 
-            if (score <= MIN_SCORE_THRESH)
-                continue;
-
-            float x_center = outputBoxes.get(i * NUM_COORDS);
-            float y_center = outputBoxes.get(i * NUM_COORDS + 1);
-            float w = outputBoxes.get(i * NUM_COORDS + 2);
-            float h = outputBoxes.get(i * NUM_COORDS + 3);
-
-            x_center =
-                    x_center / X_SCALE * anchors.get(i).w + anchors.get(i).x_center;
-            y_center =
-                    y_center / Y_SCALE * anchors.get(i).h + anchors.get(i).y_center;
-
-            h = h / H_SCALE * anchors.get(i).h;
-            w = w / W_SCALE * anchors.get(i).w;
-
-            float ymin = y_center - h / 2.f;
-            float xmin = x_center - w / 2.f;
-            float ymax = y_center + h / 2.f;
-            float xmax = x_center + w / 2.f;
-
-            detections.add(new Detection(new RectF(xmin, ymin, xmax, ymax), score));
+            int box = i * NUM_COORDS;
+            float x_center = outputBoxes.get(box);
+            float y_center = outputBoxes.get(box + 1);
+            float w = outputBoxes.get(box + 2);
+            float h = outputBoxes.get(box + 3);
+
+            x_center = x_center / X_SCALE * ANCHOR_W[i] + ANCHOR_X_CENTER[i];
+            y_center = y_center / Y_SCALE * ANCHOR_H[i] + ANCHOR_Y_CENTER[i];
+
+            h = h / H_SCALE * ANCHOR_H[i];
+            w = w / W_SCALE * ANCHOR_W[i];
+
+            int offset = numDetections * 4;
+            detectionBoxes[offset] = x_center - w / 2.f;
+            detectionBoxes[offset + 1] = y_center - h / 2.f;
+            detectionBoxes[offset + 2] = x_center + w / 2.f;
+            detectionBoxes[offset + 3] = y_center + h / 2.f;
+            detectionScores[numDetections] = score;
+            ++numDetections;
         }
 
         outputScores.clear();
         outputBoxes.clear();
 
-        // Check if there are any detections at all.
-        if (detections.isEmpty()) {
-            return new ArrayList<>();
-        }
-
-        // Copy all the scores (there is a single score in each detection after
-        // the above pruning) to an indexed vector for sorting. The first value is
-        // the index of the detection in the original vector from which the score
-        // stems, while the second is the actual score.
-        List<IndexedScore> indexed_scores = new ArrayList<>();
-        for (int index = 0; index < detections.size(); ++index) {
-            indexed_scores.add(
-                    new IndexedScore(index, detections.get(index).score));
+        // Sort the indices of the detections by descending score.
+        for (int i = 0; i < numDetections; ++i) {
+            float score = detectionScores[i];
+            int j = i - 1;
+            while (j >= 0 && detectionScores[sortedIndices[j]] < score) {
+                sortedIndices[j + 1] = sortedIndices[j];
+                --j;
+            }
+            sortedIndices[j + 1] = i;
         }
-        indexed_scores.sort((o1, o2) -> {
-            if (o1.score > o2.score) return 1;
-            else if (o1.score == o2.score) return 0;
-            return -1;
-        });
 
-        // A set of detections and locations, wrapping the location data from each
-        // detection, which are retained after the non-maximum suppression.
-        List<RectF> retained_detections = WeightedNonMaxSuppression(indexed_scores, detections);
+        // The locations retained after the non-maximum suppression.
+        WeightedNonMaxSuppression(numDetections);
 
-        Trace.endSection(); // "detect"
-        return retained_detections;
+        return results;
     }
 
-    private List<RectF> WeightedNonMaxSuppression(List<IndexedScore> indexed_scores,
-                                                      List<Detection> detections) {
-        List<IndexedScore> remained_indexed_scores = new ArrayList<>(indexed_scores);
+    private void WeightedNonMaxSuppression(int numDetections) {
+        results.clear();
 
-        List<IndexedScore> remained = new ArrayList<>();
-        List<IndexedScore> candidates = new ArrayList<>();
-        List<RectF> output_locations = new ArrayList<>();
+        // sortedIndices holds the remaining detections, compacted in place each round.
+        int numRemained = numDetections;
 
-        while (!remained_indexed_scores.isEmpty()) {
-            Detection detection = detections.get(remained_indexed_scores.get(0).index);
-            if ((int) detection.score < -1.f) {
-                break;
-            }
+        while (numRemained > 0) {
+            int top = sortedIndices[0];
+
+            float w_xmin = 0.0f;
+            float w_ymin = 0.0f;
+            float w_xmax = 0.0f;
+            float w_ymax = 0.0f;
+            float total_score = 0.0f;
 
-            remained.clear();
-            candidates.clear();
-            RectF location = new RectF(detection.location);
+            int kept = 0;
             // This includes the first box.
-            for (IndexedScore indexed_score : remained_indexed_scores) {
-                RectF rest_location = new RectF(detections.get(indexed_score.index).location);
-                float similarity =
-                        OverlapSimilarity(rest_location, location);
-                if (similarity > MIN_SUPPRESSION_THRESHOLD) {
-                    candidates.add(indexed_score);
+            for (int i = 0; i < numRemained; ++i) {
+                int index = sortedIndices[i];
+                if (i == 0 || OverlapSimilarity(index, top) > MIN_SUPPRESSION_THRESHOLD) {
+                    float score = detectionScores[index];
+                    total_score += score;
+                    w_xmin += detectionBoxes[index * 4] * score;
+                    w_ymin += detectionBoxes[index * 4 + 1] * score;
+                    w_xmax += detectionBoxes[index * 4 + 2] * score;
+                    w_ymax += detectionBoxes[index * 4 + 3] * score;
                 } else {
-                    remained.add(indexed_score);
+                    sortedIndices[kept++] = index;
                 }
             }
-            RectF weighted_location = new RectF(detection.location);
-            if (!candidates.isEmpty()) {
-                float w_xmin = 0.0f;
-                float w_ymin = 0.0f;
-                float w_xmax = 0.0f;
-                float w_ymax = 0.0f;
-                float total_score = 0.0f;
-                for (IndexedScore candidate : candidates) {
-                    total_score += candidate.score;
-                    RectF bbox =
-                            detections.get(candidate.index).location;
-                    w_xmin += bbox.left * candidate.score;
-                    w_ymin += bbox.top * candidate.score;
-                    w_xmax += bbox.right * candidate.score;
-                    w_ymax += bbox.bottom * candidate.score;
+            numRemained = kept;
 
-                }
-                weighted_location.left = w_xmin / total_score * INPUT_SIZE_WIDTH;
-                weighted_location.top = w_ymin / total_score * INPUT_SIZE_HEIGHT;
-                weighted_location.right = w_xmax / total_score * INPUT_SIZE_WIDTH;
-                weighted_location.bottom = w_ymax / total_score * INPUT_SIZE_HEIGHT;
+            if (results.size() == locationPool.size()) {
+                locationPool.add(new RectF());
             }
-            remained_indexed_scores.clear();
-            remained_indexed_scores.addAll(remained);
-            output_locations.add(weighted_location);
+            RectF weighted_location = locationPool.get(results.size());
+            weighted_location.left = w_xmin / total_score * INPUT_SIZE_WIDTH;
+            weighted_location.top = w_ymin / total_score * INPUT_SIZE_HEIGHT;
+            weighted_location.right = w_xmax / total_score * INPUT_SIZE_WIDTH;
+            weighted_location.bottom = w_ymax / total_score * INPUT_SIZE_HEIGHT;
+            results.add(weighted_location);
         }
-
-        return output_locations;
     }
 
-    // Computes an overlap similarity between two rectangles. Similarity measure is
-    // defined by overlap_type parameter.
-    private float OverlapSimilarity(RectF rect1, RectF rect2) {
-        if (!RectF.intersects(rect1, rect2)) return 0.0f;
-        RectF intersection = new RectF();
-        intersection.setIntersect(rect1, rect2);
-
-        float intersection_area = intersection.height() * intersection.width();
-        float normalization = rect1.height() * rect1.width()
-                + rect2.height() * rect2.width() - intersection_area;
+    // Computes an overlap similarity (intersection over union) between two detections.
+    private float OverlapSimilarity(int index1, int index2) {
+        final float[] boxes = detectionBoxes;
+        float xmin1 = boxes[index1 * 4], ymin1 = boxes[index1 * 4 + 1];
+        float xmax1 = boxes[index1 * 4 + 2], ymax1 = boxes[index1 * 4 + 3];
+        float xmin2 = boxes[index2 * 4], ymin2 = boxes[index2 * 4 + 1];
+        float xmax2 = boxes[index2 * 4 + 2], ymax2 = boxes[index2 * 4 + 3];
+
+        float left = Math.max(xmin1, xmin2);
+        float top = Math.max(ymin1, ymin2);
+        float right = Math.min(xmax1, xmax2);
+        float bottom = Math.min(ymax1, ymax2);
+        if (left >= right || top >= bottom) return 0.0f;
+
+        float intersection_area = (right - left) * (bottom - top);
+        float normalization = (xmax1 - xmin1) * (ymax1 - ymin1)
+                + (xmax2 - xmin2) * (ymax2 - ymin2) - intersection_area;
 
         return normalization > 0.0f ? intersection_area / normalization : 0.0f;
     }
@@ -0,0 +1,48 @@
+package pp.facerecognizer.ml;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+
+/**
+ * Maps a {@link FaceNet} embedding to one of the enrolled labels.
+ *
+ * Implementations are thread safe: faces may be classified from several threads at once and
+ * while another thread enrolls.
+ */
+public interface Classifier extends Predictor {
+    /** Label of a face that is not close enough to anybody enrolled. */
+    int UNKNOWN = -1;
+
+    class Prediction {
+        private final int index;
+        private final float prob;
+
+        public Prediction(int index, float prob) {
+            this.index = index;
+            this.prob = prob;
+        }
+
+        /** The predicted label, or {@link #UNKNOWN}. */
+        public int getIndex() {
+            return index;
+        }
+
+        public float getProb() {
+            return prob;
+        }
+    }
+
+    /** Adds embeddings of one label. They take part in every later prediction. */
+    void enroll(int label, List<float[]> embeddings);
+
+    /**
+     * Fills the most likely labels, best first. The first entry is what
+     * {@link #predict(FloatBuffer)} returns; the runners-up that follow are enrolled labels,
+     * never {@link #UNKNOWN}.
+     *
+     * @param labels Receives up to {@code labels.length} labels.
+     * @param probs Receives the probability of each label, at least as long as labels.
+     * @return The number of entries written, at least 1.
+     */
+    int predict(FloatBuffer embedding, int[] labels, float[] probs);
+}
@@ -0,0 +1,206 @@
+package pp.facerecognizer.ml;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only binary store of labelled embeddings.
+ *
+ * The file is a 16 byte header (magic, version, dimension, reserved) followed by fixed
+ * width records of an int32 label and {@code dimension} float32 values, all little endian.
+ * The number of records follows from the file length, so appending is a single write and a
+ * torn trailing record is ignored. Reads go through a memory map without copying.
+ */
+public class EmbeddingStore {
+    private static final int MAGIC = 0x424D4546; // "FEMB"
+    private static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 16;
+
+    private static final int BYTE_SIZE_OF_INT = 4;
+    private static final int BYTE_SIZE_OF_FLOAT = 4;
+
+    private final File file;
+    private final int dimension;
+    private final int recordSize;
+
+    /** A read-only view of the records present when it was taken. */
+    public class Snapshot {
+        private final ByteBuffer buffer;
+        private final int size;
+
+        private Snapshot(ByteBuffer buffer, int size) {
+            this.buffer = buffer;
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int getLabel(int index) {
+            return buffer.getInt(HEADER_SIZE + index * recordSize);
+        }
+
+        /** A view of the embedding of the record, backed by the map. */
+        public FloatBuffer getEmbedding(int index) {
+            ByteBuffer record = buffer.duplicate();
+            int offset = HEADER_SIZE + index * recordSize + BYTE_SIZE_OF_INT;
+            record.position(offset);
+            record.limit(offset + dimension * BYTE_SIZE_OF_FLOAT);
+            return record.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+    }
+
+    private EmbeddingStore(File file, int dimension) {
+        this.file = file;
+        this.dimension = dimension;
+        this.recordSize = BYTE_SIZE_OF_INT + dimension * BYTE_SIZE_OF_FLOAT;
+    }
+
+    /**
+     * Opens the store, creating an empty one if the file does not exist.
+     *
+     * @throws IOException If the file exists but is not a store of this dimension.
+     */
+    public static EmbeddingStore open(File file, int dimension) throws IOException {
+        EmbeddingStore store = new EmbeddingStore(file, dimension);
+
+        if (!file.exists() || file.length() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(dimension).putInt(0);
+            header.flip();
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.getChannel().write(header);
+            }
+            return store;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileInputStream in = new FileInputStream(file)) {
+            in.getChannel().read(header);
+        }
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+            throw new IOException(file + " is not an embedding store");
+        }
+        if (header.getInt() != VERSION || header.getInt() != dimension) {
+            throw new IOException(file + " has an unsupported version or dimension");
+        }
+
+        return store;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    /** The number of complete records. */
+    public int size() {
+        return (int) ((file.length() - HEADER_SIZE) / recordSize);
+    }
+
+    /** Appends one record per embedding, all with the same label. */
+    public synchronized void append(int label, List<float[]> embeddings) throws IOException {
+        ByteBuffer records = ByteBuffer.allocate(embeddings.size() * recordSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (float[] embedding : embeddings) {
+            if (embedding.length != dimension) {
+                throw new IllegalArgumentException(
+                        "Expected " + dimension + " values, got " + embedding.length);
+            }
+            records.putInt(label);
+            records.asFloatBuffer().put(embedding);
+            records.position(records.position() + dimension * BYTE_SIZE_OF_FLOAT);
+        }
+        records.flip();
+
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = out.getChannel();
+            // Overwrite a torn trailing record, if any.
+            channel.position(HEADER_SIZE + (long) size() * recordSize);
+            while (records.hasRemaining()) {
+                channel.write(records);
+            }
+        }
+    }
+
+    /** Memory-maps the records currently in the store. */
+    public Snapshot snapshot() throws IOException {
+        int size = size();
+        try (FileInputStream in = new FileInputStream(file)) {
+            MappedByteBuffer buffer = in.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + (long) size * recordSize);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return new Snapshot(buffer, size);
+        }
+    }
+
+    /**
+     * Converts a legacy libsvm text file ({@code label index:value ...} per line) into a new
+     * store. Missing indices are stored as 0. The store only appears once it is complete.
+     */
+    public static EmbeddingStore migrate(File text, File binary, int dimension) throws IOException {
+        File partial = new File(binary.getPath() + ".tmp");
+        if (partial.exists() && !partial.delete()) {
+            throw new IOException("Cannot replace " + partial);
+        }
+        EmbeddingStore store = open(partial, dimension);
+
+        List<float[]> embeddings = new ArrayList<>();
+        int label = 0;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(text))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.trim().split("\\s+");
+                if (tokens.length == 0 || tokens[0].isEmpty()) {
+                    continue;
+                }
+
+                int lineLabel = (int) Double.parseDouble(tokens[0]);
+                // Consecutive samples of one person go out in a single write.
+                if (lineLabel != label && !embeddings.isEmpty()) {
+                    store.append(label, embeddings);
+                    embeddings.clear();
+                }
+                label = lineLabel;
+
+                float[] embedding = new float[dimension];
+                for (int i = 1; i < tokens.length; ++i) {
+                    int colon = tokens[i].indexOf(':');
+                    int index = Integer.parseInt(tokens[i].substring(0, colon));
+                    if (index >= 0 && index < dimension) {
+                        embedding[index] = Float.parseFloat(tokens[i].substring(colon + 1));
+                    }
+                }
+                embeddings.add(embedding);
+            }
+        }
+
+        if (!embeddings.isEmpty()) {
+            store.append(label, embeddings);
+        }
+
+        if (!partial.renameTo(binary)) {
+            throw new IOException("Cannot rename " + partial + " to " + binary);
+        }
+        return open(binary, dimension);
+    }
+}
@@ -15,12 +15,12 @@ package pp.facerecognizer.ml;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
-import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.os.Trace;
 
+import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
 
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -28,34 +28,78 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
 
+import pp.facerecognizer.env.CropSink;
 import pp.facerecognizer.env.ImageUtils;
+import pp.facerecognizer.env.YuvPlanes;
 
 public class FaceNet {
-    private static final String MODEL_FILE = "facenet.tflite";
+    /** The FaceNet variants the app can load. */
+    public enum Precision {
+        /** The original float model. */
+        FLOAT("facenet.tflite"),
+        /** Post-training float16 weights, float32 input and output. */
+        FP16("facenet_fp16.tflite"),
+        /** Post-training full integer quantization, 8 bit input and output. */
+        INT8("facenet_int8.tflite");
+
+        private final String modelFile;
+
+        Precision(String modelFile) {
+            this.modelFile = modelFile;
+        }
+    }
 
     public static final int EMBEDDING_SIZE = 512;
 
     private static final int INPUT_SIZE_HEIGHT = 160;
     private static final int INPUT_SIZE_WIDTH = 160;
 
+    private static final int INPUT_SIZE = INPUT_SIZE_HEIGHT * INPUT_SIZE_WIDTH * 3;
+
     private static final int BYTE_SIZE_OF_FLOAT = 4;
 
+    // Number of faces the buffers are sized for up front, grown on demand.
+    private static final int INITIAL_BATCH_CAPACITY = 4;
+
     // Pre-allocated buffers.
-    private int[] intValues;
-    private float[] rgbValues;
+    private int[] framePixels;
+    private final Rect faceRect = new Rect();
 
-    private FloatBuffer inputBuffer;
-    private FloatBuffer outputBuffer;
+    // Views over the shared direct storage, cached so that steady state allocates nothing.
+    // The interpreter requires buffers whose capacity matches the tensor exactly, so there
+    // is one input/output view per batch size and one per face for filling and reading.
+    private int batchCapacity;
+    private ByteBuffer[] inputBuffers;
+    private ByteBuffer[] outputBuffers;
+    private FloatBuffer[] faceInputs;
+    private FloatBuffer[] embeddingBuffers;
+    private FloatBuffer[] faceOutputs;
 
-    private Bitmap bitmap;
+    // Quantization of the input and output tensors, if they are 8 bit.
+    private Tensor.QuantizationParams inputQuantization;
+    private Tensor.QuantizationParams outputQuantization;
+    private boolean signedInput;
+    private boolean signedOutput;
+    // 8 bit models are fed through a float buffer for one face, then quantized.
+    private FloatBuffer prewhitened;
+    private ByteBuffer[] faceQuantizedInputs;
+    private ByteBuffer[] faceQuantizedOutputs;
 
+    private int batchSize;
+
+    // Optional diagnostic capture of the face crops.
+    private CropSink cropSink;
+
+    private Precision precision;
     private Interpreter interpreter;
 
     /** Memory-map the model file in Assets. */
-    private static ByteBuffer loadModelFile(AssetManager assets)
+    private static ByteBuffer loadModelFile(AssetManager assets, String modelFile)
             throws IOException {
-        AssetFileDescriptor fileDescriptor = assets.openFd(MODEL_FILE);
+        AssetFileDescriptor fileDescriptor = assets.openFd(modelFile);
         FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
         FileChannel fileChannel = inputStream.getChannel();
         long startOffset = fileDescriptor.getStartOffset();
@@ -63,70 +107,309 @@ public class FaceNet {
         return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
     }
 
+    public static FaceNet create(
+            final AssetManager assetManager, final InterpreterConfig config) {
+        return create(assetManager, config, Precision.FLOAT);
+    }
+
     /**
      * Initializes a native TensorFlow session for classifying images.
      *
      * @param assetManager The asset manager to be used to load assets.
+     * @param config How to set up the interpreter, or null to pick the fastest of
+     *               {@link InterpreterConfig#candidates()}.
+     * @param precision Which variant of the model to load.
      */
-    public static FaceNet create(final AssetManager assetManager) {
+    public static FaceNet create(
+            final AssetManager assetManager, final InterpreterConfig config,
+            final Precision precision) {
         final FaceNet f = new FaceNet();
+        f.precision = precision;
 
         try {
-            f.interpreter = new Interpreter(loadModelFile(assetManager));
+            ByteBuffer model = loadModelFile(assetManager, precision.modelFile);
+            f.interpreter = config != null
+                    ? config.create(model)
+                    : InterpreterConfig.createFastest(model, InterpreterConfig.candidates());
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
 
+        Tensor input = f.interpreter.getInputTensor(0);
+        if (isQuantized(input)) {
+            f.inputQuantization = input.quantizationParams();
+            f.signedInput = input.dataType() == DataType.INT8;
+            f.prewhitened = ByteBuffer.allocateDirect(INPUT_SIZE * BYTE_SIZE_OF_FLOAT)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+        }
+        Tensor output = f.interpreter.getOutputTensor(0);
+        if (isQuantized(output)) {
+            f.outputQuantization = output.quantizationParams();
+            f.signedOutput = output.dataType() == DataType.INT8;
+        }
+
         // Pre-allocate buffers.
-        f.intValues = new int[INPUT_SIZE_HEIGHT * INPUT_SIZE_WIDTH];
-        f.rgbValues = new float[INPUT_SIZE_HEIGHT * INPUT_SIZE_WIDTH * 3];
-        f.inputBuffer = ByteBuffer.allocateDirect(INPUT_SIZE_HEIGHT * INPUT_SIZE_WIDTH * 3 * BYTE_SIZE_OF_FLOAT)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        f.outputBuffer = ByteBuffer.allocateDirect(EMBEDDING_SIZE * BYTE_SIZE_OF_FLOAT)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
+        f.framePixels = new int[0];
+        f.allocateBatch(INITIAL_BATCH_CAPACITY);
+        f.batchSize = 1;
 
-        f.bitmap = Bitmap.createBitmap(INPUT_SIZE_WIDTH, INPUT_SIZE_HEIGHT, Config.ARGB_8888);
         return f;
     }
 
     private FaceNet() {}
 
+    private static boolean isQuantized(Tensor tensor) {
+        return tensor.dataType() == DataType.UINT8 || tensor.dataType() == DataType.INT8;
+    }
+
+    private static ByteBuffer view(ByteBuffer storage, int offset, int length) {
+        ByteBuffer buffer = storage.duplicate();
+        buffer.position(offset);
+        buffer.limit(offset + length);
+        return buffer.slice().order(ByteOrder.nativeOrder());
+    }
+
+    private static FloatBuffer floatView(ByteBuffer storage, int offset, int length) {
+        return view(storage, offset * BYTE_SIZE_OF_FLOAT, length * BYTE_SIZE_OF_FLOAT)
+                .asFloatBuffer();
+    }
+
+    private void allocateBatch(int capacity) {
+        final int inputBytes = inputQuantization != null ? 1 : BYTE_SIZE_OF_FLOAT;
+        final int outputBytes = outputQuantization != null ? 1 : BYTE_SIZE_OF_FLOAT;
+
+        ByteBuffer input = ByteBuffer.allocateDirect(capacity * INPUT_SIZE * inputBytes)
+                .order(ByteOrder.nativeOrder());
+        ByteBuffer output = ByteBuffer.allocateDirect(capacity * EMBEDDING_SIZE * outputBytes)
+                .order(ByteOrder.nativeOrder());
+        // Embeddings are always handed out as floats, dequantized if need be.
+        ByteBuffer embeddings = outputQuantization != null
+                ? ByteBuffer.allocateDirect(capacity * EMBEDDING_SIZE * BYTE_SIZE_OF_FLOAT)
+                        .order(ByteOrder.nativeOrder())
+                : output;
+
+        batchCapacity = capacity;
+        inputBuffers = new ByteBuffer[capacity + 1];
+        outputBuffers = new ByteBuffer[capacity + 1];
+        embeddingBuffers = new FloatBuffer[capacity + 1];
+        faceInputs = new FloatBuffer[capacity];
+        faceOutputs = new FloatBuffer[capacity];
+        faceQuantizedInputs = new ByteBuffer[capacity];
+        faceQuantizedOutputs = new ByteBuffer[capacity];
+
+        for (int i = 0; i <= capacity; ++i) {
+            inputBuffers[i] = view(input, 0, i * INPUT_SIZE * inputBytes);
+            outputBuffers[i] = view(output, 0, i * EMBEDDING_SIZE * outputBytes);
+            embeddingBuffers[i] = floatView(embeddings, 0, i * EMBEDDING_SIZE);
+        }
+
+        for (int i = 0; i < capacity; ++i) {
+            if (inputQuantization != null) {
+                faceQuantizedInputs[i] = view(input, i * INPUT_SIZE, INPUT_SIZE);
+            } else {
+                faceInputs[i] = floatView(input, i * INPUT_SIZE, INPUT_SIZE);
+            }
+            if (outputQuantization != null) {
+                faceQuantizedOutputs[i] = view(output, i * EMBEDDING_SIZE, EMBEDDING_SIZE);
+            }
+            faceOutputs[i] = floatView(embeddings, i * EMBEDDING_SIZE, EMBEDDING_SIZE);
+        }
+    }
+
+    private void resizeBatch(int size) {
+        if (size > batchCapacity) {
+            allocateBatch(Math.max(size, batchCapacity * 2));
+        }
+        if (size != batchSize) {
+            interpreter.resizeInput(0, new int[] {size, INPUT_SIZE_HEIGHT, INPUT_SIZE_WIDTH, 3});
+            batchSize = size;
+        }
+    }
+
+    public Precision getPrecision() {
+        return precision;
+    }
+
     public FloatBuffer getEmbeddings(Bitmap originalBitmap, Rect rect) {
+        getEmbeddings(originalBitmap, Collections.singletonList(rect));
+        return getEmbedding(0);
+    }
+
+    /**
+     * Computes the embeddings of all faces in a single interpreter invocation.
+     *
+     * @return An N x {@link #EMBEDDING_SIZE} view, valid until the next call.
+     */
+    public FloatBuffer getEmbeddings(Bitmap originalBitmap, List<Rect> rects) {
         // Log this method so that it can be analyzed with systrace.
         Trace.beginSection("getEmbeddings");
 
+        final int size = rects.size();
+        if (size == 0) {
+            Trace.endSection(); // "getEmbeddings"
+            return embeddingBuffers[0];
+        }
+        resizeBatch(size);
+
         Trace.beginSection("preprocessBitmap");
-        Canvas canvas = new Canvas(bitmap);
-        canvas.drawBitmap(originalBitmap, rect,
-                new Rect(0, 0, INPUT_SIZE_WIDTH, INPUT_SIZE_HEIGHT), null);
+        final int bitmapWidth = originalBitmap.getWidth();
+        final int bitmapHeight = originalBitmap.getHeight();
+        for (int i = 0; i < size; ++i) {
+            // Only the face is read out of the bitmap, with the pixel around it that the
+            // resampling blends in, so a large photo never lands in framePixels whole.
+            Rect rect = rects.get(i);
+            final int left = clamp(rect.left - 1, 0, bitmapWidth - 1);
+            final int top = clamp(rect.top - 1, 0, bitmapHeight - 1);
+            final int width = clamp(rect.right + 1, left + 1, bitmapWidth) - left;
+            final int height = clamp(rect.bottom + 1, top + 1, bitmapHeight) - top;
+            if (framePixels.length < width * height) {
+                framePixels = new int[width * height];
+            }
+            originalBitmap.getPixels(framePixels, 0, width, left, top, width, height);
 
-        bitmap.getPixels(intValues, 0, INPUT_SIZE_WIDTH, 0, 0,
-                INPUT_SIZE_WIDTH, INPUT_SIZE_HEIGHT);
-        ImageUtils.saveBitmap(bitmap);
+            faceRect.set(rect.left - left, rect.top - top, rect.right - left, rect.bottom - top);
+            preprocess(i, framePixels, width, height, faceRect);
+        }
+        Trace.endSection(); // preprocessBitmap
 
-        for (int i = 0; i < intValues.length; ++i) {
-            int p = intValues[i];
+        return run(size);
+    }
 
-            rgbValues[i * 3 + 2] = (float) (p & 0xFF);
-            rgbValues[i * 3 + 1] = (float) ((p >> 8) & 0xFF);
-            rgbValues[i * 3 + 0] = (float) ((p >> 16) & 0xFF);
+    /**
+     * Computes the embeddings of the faces in a camera image in a single interpreter
+     * invocation. Only the face rectangles are converted to RGB, at the full resolution of the
+     * image.
+     *
+     * @param rects The faces, in upright coordinates of the image.
+     * @return An N x {@link #EMBEDDING_SIZE} view, valid until the next call.
+     */
+    public FloatBuffer getEmbeddings(YuvPlanes image, List<Rect> rects) {
+        // Log this method so that it can be analyzed with systrace.
+        Trace.beginSection("getEmbeddings");
+
+        final int size = rects.size();
+        if (size == 0) {
+            Trace.endSection(); // "getEmbeddings"
+            return embeddingBuffers[0];
         }
+        resizeBatch(size);
 
-        ImageUtils.prewhiten(rgbValues, inputBuffer);
+        Trace.beginSection("preprocessImage");
+        for (int i = 0; i < size; ++i) {
+            Rect rect = rects.get(i);
+            faceRect.set(rect.left, rect.top,
+                    Math.max(rect.right, rect.left + 1), Math.max(rect.bottom, rect.top + 1));
+            final int width = faceRect.width();
+            final int height = faceRect.height();
+            if (framePixels.length < width * height) {
+                framePixels = new int[width * height];
+            }
+            ImageUtils.cropYUV420ToARGB8888(image, faceRect, framePixels);
 
-        Trace.endSection(); // preprocessBitmap
+            faceRect.set(0, 0, width, height);
+            preprocess(i, framePixels, width, height, faceRect);
+        }
+        Trace.endSection(); // preprocessImage
+
+        return run(size);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(value, max));
+    }
 
+    /** Crops, resizes, unpacks and prewhitens one face natively in one pass. */
+    private void preprocess(int index, int[] pixels, int width, int height, Rect rect) {
+        if (inputQuantization != null) {
+            ImageUtils.cropResizePrewhiten(pixels, width, height, rect,
+                    INPUT_SIZE_WIDTH, INPUT_SIZE_HEIGHT, prewhitened);
+            ImageUtils.quantize(prewhitened, inputQuantization.getScale(),
+                    inputQuantization.getZeroPoint(), signedInput, faceQuantizedInputs[index]);
+        } else {
+            ImageUtils.cropResizePrewhiten(pixels, width, height, rect,
+                    INPUT_SIZE_WIDTH, INPUT_SIZE_HEIGHT, faceInputs[index]);
+        }
+        if (cropSink != null) {
+            cropSink.offer(pixels, width, height, rect);
+        }
+    }
+
+    private FloatBuffer run(int size) {
         // Run the inference call.
         Trace.beginSection("run");
+        ByteBuffer inputBuffer = inputBuffers[size];
+        ByteBuffer outputBuffer = outputBuffers[size];
+        inputBuffer.rewind();
         outputBuffer.rewind();
         interpreter.run(inputBuffer, outputBuffer);
-        outputBuffer.flip();
         Trace.endSection();
 
+        if (outputQuantization != null) {
+            for (int i = 0; i < size; ++i) {
+                dequantize(faceQuantizedOutputs[i], faceOutputs[i]);
+            }
+        }
+
         Trace.endSection(); // "getEmbeddings"
-        return outputBuffer;
+        FloatBuffer embeddings = embeddingBuffers[size];
+        embeddings.rewind();
+        return embeddings;
+    }
+
+    private void dequantize(ByteBuffer input, FloatBuffer output) {
+        final float scale = outputQuantization.getScale();
+        final int zeroPoint = outputQuantization.getZeroPoint();
+
+        for (int i = 0; i < EMBEDDING_SIZE; ++i) {
+            int value = signedOutput ? input.get(i) : input.get(i) & 0xFF;
+            output.put(i, scale * (value - zeroPoint));
+        }
+    }
+
+    /**
+     * Returns the embedding of the face at {@code index} computed by the last call to
+     * {@link #getEmbeddings(Bitmap, List)}.
+     */
+    public FloatBuffer getEmbedding(int index) {
+        FloatBuffer buffer = faceOutputs[index];
+        buffer.rewind();
+        return buffer;
+    }
+
+    /**
+     * Classifies every face with both models and returns the share of faces for which the
+     * top-1 class agrees. Used to refuse a quantized model that strays from the float one.
+     *
+     * @param candidate The model under test.
+     * @param reference The float model.
+     * @param classifier The classifier trained on the float embeddings.
+     * @param faces Face crops, each one classified as a whole.
+     */
+    public static float agreement(
+            FaceNet candidate, FaceNet reference, Classifier classifier, List<Bitmap> faces) {
+        if (faces.isEmpty()) {
+            return 0;
+        }
+
+        int agreed = 0;
+        Rect rect = new Rect();
+        for (Bitmap face : faces) {
+            rect.set(0, 0, face.getWidth(), face.getHeight());
+
+            int expected = classifier.predict(reference.getEmbeddings(face, rect)).getIndex();
+            int actual = classifier.predict(candidate.getEmbeddings(face, rect)).getIndex();
+            if (expected == actual) {
+                ++agreed;
+            }
+        }
+
+        return (float) agreed / faces.size();
+    }
+
+    /** Sets a sink which receives a sample of the face crops, or null to disable it. */
+    public void setCropSink(CropSink cropSink) {
+        this.cropSink = cropSink;
     }
 
     public void close() {
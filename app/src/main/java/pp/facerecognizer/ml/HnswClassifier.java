@@ -0,0 +1,150 @@
+package pp.facerecognizer.ml;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Nearest-neighbour classification through an {@link HnswIndex}, for galleries too large to
+ * scan on every face.
+ *
+ * The graph grows with each enrollment and is saved next to the store in the background, so
+ * startup reads it back instead of rebuilding it. A face further than the threshold from its match is
+ * {@link Classifier#UNKNOWN}.
+ */
+public class HnswClassifier implements Classifier {
+    private static final String LOG_TAG = "HnswClassifier";
+
+    private static final int M = 16;
+    private static final int EF_CONSTRUCTION = 100;
+    private static final int EF_SEARCH = 64;
+    private static final long SEED = 42;
+
+    private final HnswIndex index;
+    private final EmbeddingStore store;
+    private final File graphFile;
+    private final float threshold;
+
+    // Writes the graph in the background, predictions never wait for the disk.
+    private final ExecutorService persister = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(runnable, "HnswClassifier-persist"));
+
+    // Per-query scratch.
+    private final float[] query;
+    private final int[] neighbors = new int[EF_SEARCH];
+    private final float[] neighborDistances = new float[EF_SEARCH];
+    private final int[] topLabel = new int[1];
+    private final float[] topProb = new float[1];
+
+    /**
+     * @param threshold Faces further than this (L2) from their match are unknown.
+     * @param dimension The size of an embedding.
+     * @param store The embeddings the graph indexes, appended to on enrollment.
+     * @param graphFile Where the graph is kept.
+     */
+    public HnswClassifier(float threshold, int dimension, EmbeddingStore store, File graphFile) {
+        this.threshold = threshold;
+        this.store = store;
+        this.graphFile = graphFile;
+        query = new float[dimension];
+
+        HnswIndex loaded;
+        try {
+            loaded = HnswIndex.load(graphFile, store.snapshot(), dimension,
+                    M, EF_CONSTRUCTION, EF_SEARCH, SEED);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to read embeddings", e);
+            loaded = new HnswIndex(dimension, M, EF_CONSTRUCTION, EF_SEARCH, SEED);
+        }
+        index = loaded;
+        if (index.isDirty()) {
+            save();
+        }
+    }
+
+    /** The number of samples in the graph. */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    @Override
+    public synchronized void enroll(int label, List<float[]> embeddings) {
+        try {
+            store.append(label, embeddings);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to store embeddings", e);
+            return;
+        }
+
+        for (float[] embedding : embeddings) {
+            index.add(label, embedding);
+        }
+        save();
+    }
+
+    /** Copies the graph under the lock and leaves the writing to the persister. */
+    private void save() {
+        final ByteBuffer graph = index.serialize();
+        persister.execute(() -> {
+            try {
+                HnswIndex.write(graph, graphFile);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to save the graph", e);
+            }
+        });
+    }
+
+    @Override
+    public synchronized Prediction predict(FloatBuffer embedding) {
+        predict(embedding, topLabel, topProb);
+        return new Prediction(topLabel[0], topProb[0]);
+    }
+
+    @Override
+    public synchronized int predict(FloatBuffer embedding, int[] topLabels, float[] topProbs) {
+        for (int i = 0; i < query.length; ++i) {
+            query[i] = embedding.get(i);
+        }
+
+        // Runners-up are the next distinct labels among a candidate list as wide as the search.
+        int k = topLabels.length == 1 ? 1 : EF_SEARCH;
+        int found = index.search(query, k, neighbors, neighborDistances);
+        if (found == 0) {
+            topLabels[0] = UNKNOWN;
+            topProbs[0] = 0;
+            return 1;
+        }
+
+        int count = 0;
+        for (int n = 0; n < found && count < topLabels.length; ++n) {
+            float distance = (float) Math.sqrt(neighborDistances[n]);
+            float confidence = Math.max(0, 1 - distance / 2);
+            if (distance > threshold) {
+                if (count == 0) {
+                    topLabels[0] = UNKNOWN;
+                    topProbs[0] = confidence;
+                    return 1;
+                }
+                break;
+            }
+
+            int label = index.getLabel(neighbors[n]);
+            boolean seen = false;
+            for (int m = 0; m < count && !seen; ++m) {
+                seen = topLabels[m] == label;
+            }
+            if (!seen) {
+                topLabels[count] = label;
+                topProbs[count] = confidence;
+                ++count;
+            }
+        }
+        return count;
+    }
+}
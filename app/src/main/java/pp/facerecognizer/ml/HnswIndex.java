@@ -0,0 +1,567 @@
+package pp.facerecognizer.ml;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Hierarchical navigable small world graph (Malkov and Yashunin) for approximate nearest
+ * neighbour search under squared L2 distance.
+ *
+ * Nodes are added one at a time, so the index grows with enrollment. Node i is record i of
+ * the {@link EmbeddingStore}, so only the graph is persisted; the vectors come from the store.
+ * The graph file is a 32 byte header followed by int32 arrays in little endian: the level of
+ * every node, the fixed width level 0 links, then the upper level links of nodes above level 0.
+ */
+public class HnswIndex {
+    private static final int MAGIC = 0x57534E48; // "HNSW"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    private static final int BYTE_SIZE_OF_INT = 4;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int dimension;
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private int efSearch;
+    private final double levelMultiplier;
+    private final Random random;
+
+    private int size = 0;
+    private float[] vectors = new float[0];
+    private int[] labels = new int[0];
+    private int[] levels = new int[0];
+    // Per node a count followed by maxM0 ids.
+    private int[] links0 = new int[0];
+    // Per node above level 0, for each level from 1 a count followed by m ids.
+    private int[][] upperLinks = new int[0][];
+
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    // The number of nodes in the graph file.
+    private int savedSize = 0;
+
+    // Search scratch, the index is not thread safe.
+    private int[] visited = new int[0];
+    private int visitGeneration = 0;
+    private final Heap candidates = new Heap(false);
+    private final Heap results = new Heap(true);
+    private float[] sortedDistances = new float[0];
+    private int[] sortedIds = new int[0];
+
+    /**
+     * @param dimension The size of a vector.
+     * @param m Links per node above level 0, twice as many on level 0.
+     * @param efConstruction Candidates examined when inserting.
+     * @param efSearch Candidates examined when searching, at least k.
+     * @param seed Seed of the level generator.
+     */
+    public HnswIndex(int dimension, int m, int efConstruction, int efSearch, long seed) {
+        this.dimension = dimension;
+        this.m = m;
+        this.maxM0 = 2 * m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.levelMultiplier = 1 / Math.log(m);
+        this.random = new Random(seed);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getLabel(int id) {
+        return labels[id];
+    }
+
+    /** Whether nodes were added since the graph was saved or loaded. */
+    public boolean isDirty() {
+        return size != savedSize;
+    }
+
+    public void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+
+    /** Inserts a vector and returns its id, which is the number of vectors before it. */
+    public int add(int label, float[] vector) {
+        int node = size;
+        ensureCapacity(size + 1);
+        System.arraycopy(vector, 0, vectors, node * dimension, dimension);
+        labels[node] = label;
+        int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+        levels[node] = level;
+        links0[node * (maxM0 + 1)] = 0;
+        upperLinks[node] = level > 0 ? new int[level * (m + 1)] : null;
+        size++;
+
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return node;
+        }
+
+        int offset = node * dimension;
+        int ep = entryPoint;
+        for (int l = maxLevel; l > level; --l) {
+            ep = greedy(vectors, offset, ep, l);
+        }
+
+        for (int l = Math.min(level, maxLevel); l >= 0; --l) {
+            searchLayer(vectors, offset, ep, efConstruction, l);
+            int found = drainSorted();
+            ep = sortedIds[0];
+
+            int maxM = l == 0 ? maxM0 : m;
+            int selected = selectNeighbors(sortedIds, sortedDistances, found, maxM);
+            int[] links = linkArray(node, l);
+            int base = linkBase(node, l);
+            links[base] = selected;
+            System.arraycopy(sortedIds, 0, links, base + 1, selected);
+
+            // Copy before linking back, which reuses the scratch arrays.
+            int[] neighbors = Arrays.copyOf(sortedIds, selected);
+            for (int neighbor : neighbors) {
+                link(neighbor, node, l);
+            }
+        }
+
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+        return node;
+    }
+
+    /**
+     * Finds the approximate nearest vectors.
+     *
+     * @param ids Receives the ids, nearest first.
+     * @param distances Receives the squared distances.
+     * @return The number of results, at most k.
+     */
+    public int search(float[] query, int k, int[] ids, float[] distances) {
+        if (size == 0) {
+            return 0;
+        }
+
+        int ep = entryPoint;
+        for (int l = maxLevel; l > 0; --l) {
+            ep = greedy(query, 0, ep, l);
+        }
+        searchLayer(query, 0, ep, Math.max(efSearch, k), 0);
+
+        int found = Math.min(drainSorted(), k);
+        System.arraycopy(sortedIds, 0, ids, 0, found);
+        System.arraycopy(sortedDistances, 0, distances, 0, found);
+        return found;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= labels.length) {
+            return;
+        }
+
+        int grown = Math.max(capacity, Math.max(2 * labels.length, INITIAL_CAPACITY));
+        vectors = Arrays.copyOf(vectors, grown * dimension);
+        labels = Arrays.copyOf(labels, grown);
+        levels = Arrays.copyOf(levels, grown);
+        links0 = Arrays.copyOf(links0, grown * (maxM0 + 1));
+        upperLinks = Arrays.copyOf(upperLinks, grown);
+        visited = Arrays.copyOf(visited, grown);
+    }
+
+    private int[] linkArray(int node, int level) {
+        return level == 0 ? links0 : upperLinks[node];
+    }
+
+    private int linkBase(int node, int level) {
+        return level == 0 ? node * (maxM0 + 1) : (level - 1) * (m + 1);
+    }
+
+    private float distance(float[] a, int aOffset, int b) {
+        int bOffset = b * dimension;
+        // Independent sums, a single one serializes on the floating point add latency.
+        float sum0 = 0;
+        float sum1 = 0;
+        float sum2 = 0;
+        float sum3 = 0;
+        int i = 0;
+        for (; i + 4 <= dimension; i += 4) {
+            float diff0 = a[aOffset + i] - vectors[bOffset + i];
+            float diff1 = a[aOffset + i + 1] - vectors[bOffset + i + 1];
+            float diff2 = a[aOffset + i + 2] - vectors[bOffset + i + 2];
+            float diff3 = a[aOffset + i + 3] - vectors[bOffset + i + 3];
+            sum0 += diff0 * diff0;
+            sum1 += diff1 * diff1;
+            sum2 += diff2 * diff2;
+            sum3 += diff3 * diff3;
+        }
+        for (; i < dimension; ++i) {
+            float diff = a[aOffset + i] - vectors[bOffset + i];
+            sum0 += diff * diff;
+        }
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    /** Walks to the closest node of a level, one neighbour at a time. */
+    private int greedy(float[] query, int offset, int ep, int level) {
+        float best = distance(query, offset, ep);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] links = linkArray(ep, level);
+            int base = linkBase(ep, level);
+            for (int i = 1; i <= links[base]; ++i) {
+                int candidate = links[base + i];
+                float d = distance(query, offset, candidate);
+                if (d < best) {
+                    best = d;
+                    ep = candidate;
+                    changed = true;
+                }
+            }
+        }
+        return ep;
+    }
+
+    /** Leaves the ef closest nodes found from ep in {@link #results}. */
+    private void searchLayer(float[] query, int offset, int ep, int ef, int level) {
+        if (++visitGeneration == 0) {
+            Arrays.fill(visited, 0);
+            visitGeneration = 1;
+        }
+        candidates.clear();
+        results.clear();
+
+        float d = distance(query, offset, ep);
+        visited[ep] = visitGeneration;
+        candidates.push(d, ep);
+        results.push(d, ep);
+
+        while (candidates.size > 0) {
+            float candidateDistance = candidates.topKey();
+            int candidate = candidates.pop();
+            if (results.size >= ef && candidateDistance > results.topKey()) {
+                break;
+            }
+
+            int[] links = linkArray(candidate, level);
+            int base = linkBase(candidate, level);
+            for (int i = 1; i <= links[base]; ++i) {
+                int neighbor = links[base + i];
+                if (visited[neighbor] == visitGeneration) {
+                    continue;
+                }
+                visited[neighbor] = visitGeneration;
+
+                float neighborDistance = distance(query, offset, neighbor);
+                if (results.size < ef || neighborDistance < results.topKey()) {
+                    candidates.push(neighborDistance, neighbor);
+                    results.push(neighborDistance, neighbor);
+                    if (results.size > ef) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+    }
+
+    /** Empties {@link #results} into the sorted scratch arrays, nearest first. */
+    private int drainSorted() {
+        int found = results.size;
+        if (sortedIds.length < found) {
+            sortedIds = new int[Math.max(found, maxM0 + 1)];
+            sortedDistances = new float[sortedIds.length];
+        }
+        for (int i = found - 1; i >= 0; --i) {
+            sortedDistances[i] = results.topKey();
+            sortedIds[i] = results.pop();
+        }
+        return found;
+    }
+
+    /**
+     * Keeps candidates, nearest first, that are closer to the base than to any candidate kept
+     * before, which spreads the links in all directions. Compacts them to the front.
+     */
+    private int selectNeighbors(int[] ids, float[] distances, int count, int maxM) {
+        int selected = 0;
+        for (int i = 0; i < count && selected < maxM; ++i) {
+            int candidate = ids[i];
+            int offset = candidate * dimension;
+            boolean keep = true;
+            for (int j = 0; j < selected; ++j) {
+                if (distance(vectors, offset, ids[j]) < distances[i]) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                ids[selected] = candidate;
+                distances[selected] = distances[i];
+                ++selected;
+            }
+        }
+        return selected;
+    }
+
+    private void link(int node, int neighbor, int level) {
+        int[] links = linkArray(node, level);
+        int base = linkBase(node, level);
+        int maxM = level == 0 ? maxM0 : m;
+        int count = links[base];
+
+        if (count < maxM) {
+            links[base + 1 + count] = neighbor;
+            links[base] = count + 1;
+            return;
+        }
+
+        // Full, re-select among the current links and the new one.
+        int offset = node * dimension;
+        results.clear();
+        results.push(distance(vectors, offset, neighbor), neighbor);
+        for (int i = 1; i <= count; ++i) {
+            int id = links[base + i];
+            results.push(distance(vectors, offset, id), id);
+        }
+        int found = drainSorted();
+        int selected = selectNeighbors(sortedIds, sortedDistances, found, maxM);
+        links[base] = selected;
+        System.arraycopy(sortedIds, 0, links, base + 1, selected);
+    }
+
+    /** Writes the graph, the vectors and labels stay in the store. */
+    public void save(File file) throws IOException {
+        write(serialize(), file);
+    }
+
+    /**
+     * Copies the graph into a buffer in the file format, for {@link #write} to put on disk
+     * while the index moves on. The index counts as saved from here on.
+     */
+    public ByteBuffer serialize() {
+        int upperInts = 0;
+        for (int i = 0; i < size; ++i) {
+            upperInts += levels[i] * (m + 1);
+        }
+        int ints = size + size * (maxM0 + 1) + upperInts;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + ints * BYTE_SIZE_OF_INT)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(dimension).putInt(m)
+                .putInt(size).putInt(entryPoint).putInt(maxLevel).putInt(0);
+
+        IntBuffer body = buffer.asIntBuffer();
+        body.put(levels, 0, size);
+        body.put(links0, 0, size * (maxM0 + 1));
+        for (int i = 0; i < size; ++i) {
+            if (levels[i] > 0) {
+                body.put(upperLinks[i]);
+            }
+        }
+        buffer.rewind();
+
+        savedSize = size;
+        return buffer;
+    }
+
+    /** Replaces the file with a graph from {@link #serialize}, never leaving half of it. */
+    public static void write(ByteBuffer graph, File file) throws IOException {
+        File partial = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(partial)) {
+            FileChannel channel = out.getChannel();
+            while (graph.hasRemaining()) {
+                channel.write(graph);
+            }
+        }
+        if (!partial.renameTo(file)) {
+            throw new IOException("Cannot rename " + partial + " to " + file);
+        }
+    }
+
+    /**
+     * Reads a saved graph over the records of a store. The file is mapped and its links are
+     * copied into the index, the vectors are copied from the store. Records added to the store
+     * after the graph was saved are inserted; a missing, mismatching or corrupt graph is
+     * rebuilt.
+     */
+    public static HnswIndex load(File file, EmbeddingStore.Snapshot snapshot, int dimension,
+                                 int m, int efConstruction, int efSearch, long seed) {
+        HnswIndex index = new HnswIndex(dimension, m, efConstruction, efSearch, seed);
+        int records = snapshot.size();
+        index.ensureCapacity(records);
+
+        int loaded = 0;
+        if (file.exists()) {
+            try (FileInputStream in = new FileInputStream(file)) {
+                MappedByteBuffer buffer = in.getChannel().map(
+                        FileChannel.MapMode.READ_ONLY, 0, file.length());
+                loaded = index.readGraph(buffer.order(ByteOrder.LITTLE_ENDIAN), records);
+            } catch (IOException e) {
+                loaded = 0;
+            }
+        }
+
+        float[] row = new float[dimension];
+        for (int i = 0; i < records; ++i) {
+            snapshot.getEmbedding(i).get(row);
+            if (i < loaded) {
+                System.arraycopy(row, 0, index.vectors, i * dimension, dimension);
+                index.labels[i] = snapshot.getLabel(i);
+            } else {
+                index.add(snapshot.getLabel(i), row);
+            }
+        }
+        return index;
+    }
+
+    /** Reads the graph header and links, returns the number of nodes or 0 if unusable. */
+    private int readGraph(ByteBuffer buffer, int records) {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC
+                || buffer.getInt() != VERSION || buffer.getInt() != dimension
+                || buffer.getInt() != m) {
+            return 0;
+        }
+        int count = buffer.getInt();
+        int savedEntryPoint = buffer.getInt();
+        int savedMaxLevel = buffer.getInt();
+        buffer.getInt();
+        if (count <= 0 || count > records) {
+            // Empty, or the store lost records the graph points to.
+            return 0;
+        }
+        if (savedEntryPoint < 0 || savedEntryPoint >= count || savedMaxLevel < 0) {
+            return 0;
+        }
+
+        IntBuffer body = buffer.asIntBuffer();
+        if (body.remaining() < count + count * (maxM0 + 1)) {
+            return 0;
+        }
+        body.get(levels, 0, count);
+        body.get(links0, 0, count * (maxM0 + 1));
+        for (int i = 0; i < count; ++i) {
+            if (levels[i] < 0 || levels[i] > savedMaxLevel
+                    || !validLinks(links0, i * (maxM0 + 1), maxM0, count)) {
+                return 0;
+            }
+            if (levels[i] > 0) {
+                if (body.remaining() < levels[i] * (m + 1)) {
+                    return 0;
+                }
+                upperLinks[i] = new int[levels[i] * (m + 1)];
+                body.get(upperLinks[i]);
+                for (int level = 0; level < levels[i]; ++level) {
+                    if (!validLinks(upperLinks[i], level * (m + 1), m, count)) {
+                        return 0;
+                    }
+                }
+            }
+        }
+        if (levels[savedEntryPoint] != savedMaxLevel) {
+            return 0;
+        }
+
+        size = count;
+        savedSize = count;
+        entryPoint = savedEntryPoint;
+        maxLevel = savedMaxLevel;
+        return count;
+    }
+
+    /** Whether a count followed by that many ids fits the width and points at saved nodes. */
+    private static boolean validLinks(int[] links, int base, int width, int count) {
+        int n = links[base];
+        if (n < 0 || n > width) {
+            return false;
+        }
+        for (int i = 1; i <= n; ++i) {
+            if (links[base + i] < 0 || links[base + i] >= count) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Binary heap of (distance, id), a max-heap or a min-heap on distance. */
+    private static class Heap {
+        private final boolean max;
+        private float[] keys = new float[16];
+        private int[] ids = new int[16];
+        private int size = 0;
+
+        Heap(boolean max) {
+            this.max = max;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        float topKey() {
+            return keys[0];
+        }
+
+        private boolean above(float a, float b) {
+            return max ? a > b : a < b;
+        }
+
+        void push(float key, int id) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, 2 * size);
+                ids = Arrays.copyOf(ids, 2 * size);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!above(key, keys[parent])) {
+                    break;
+                }
+                keys[i] = keys[parent];
+                ids[i] = ids[parent];
+                i = parent;
+            }
+            keys[i] = key;
+            ids[i] = id;
+        }
+
+        int pop() {
+            int top = ids[0];
+            float key = keys[--size];
+            int id = ids[size];
+
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && above(keys[child + 1], keys[child])) {
+                    ++child;
+                }
+                if (!above(keys[child], key)) {
+                    break;
+                }
+                keys[i] = keys[child];
+                ids[i] = ids[child];
+                i = child;
+            }
+            keys[i] = key;
+            ids[i] = id;
+            return top;
+        }
+    }
+}
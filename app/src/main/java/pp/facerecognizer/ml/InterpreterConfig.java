@@ -0,0 +1,225 @@
+package pp.facerecognizer.ml;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import pp.facerecognizer.env.Logger;
+
+/**
+ * How a TensorFlow Lite interpreter is set up: thread count, XNNPACK, NNAPI and fp16
+ * relaxation.
+ *
+ * When a configuration cannot be applied on the device (no NNAPI driver, an op the delegate
+ * rejects, or a host without Android), the interpreter falls back to the plain CPU path.
+ */
+public class InterpreterConfig {
+    private static final Logger LOGGER = new Logger();
+
+    private static final int WARMUP_RUNS = 1;
+    private static final int TIMED_RUNS = 3;
+
+    /** The default single-threaded CPU interpreter. */
+    public static final InterpreterConfig CPU = new InterpreterConfig(1, false, false, false);
+
+    private final int numThreads;
+    private final boolean useXNNPACK;
+    private final boolean useNNAPI;
+    private final boolean allowFp16;
+
+    /**
+     * Builds and runs the interpreters {@link #createFastest} compares. TensorFlow Lite is one
+     * backend; the probe itself only needs this, so it runs on a host without Android.
+     */
+    interface Backend<T> {
+        T create(InterpreterConfig config) throws Exception;
+
+        /** Prepares inputs for the interpreter and returns a single inference on them. */
+        Runnable inference(T interpreter);
+
+        void close(T interpreter);
+    }
+
+    /** Interpreters of one model. */
+    private static class TfLiteBackend implements Backend<Interpreter> {
+        private final ByteBuffer model;
+
+        TfLiteBackend(ByteBuffer model) {
+            this.model = model;
+        }
+
+        @Override
+        public Interpreter create(InterpreterConfig config) {
+            return new Interpreter(model, config.toOptions());
+        }
+
+        @Override
+        public Runnable inference(Interpreter interpreter) {
+            Object[] inputs = new Object[interpreter.getInputTensorCount()];
+            for (int i = 0; i < inputs.length; ++i) {
+                inputs[i] = ByteBuffer.allocateDirect(interpreter.getInputTensor(i).numBytes())
+                        .order(ByteOrder.nativeOrder());
+            }
+
+            Map<Integer, Object> outputs = new HashMap<>();
+            for (int i = 0; i < interpreter.getOutputTensorCount(); ++i) {
+                outputs.put(i, ByteBuffer.allocateDirect(interpreter.getOutputTensor(i).numBytes())
+                        .order(ByteOrder.nativeOrder()));
+            }
+
+            return () -> run(interpreter, inputs, outputs);
+        }
+
+        @Override
+        public void close(Interpreter interpreter) {
+            interpreter.close();
+        }
+    }
+
+    public InterpreterConfig(int numThreads, boolean useXNNPACK, boolean useNNAPI, boolean allowFp16) {
+        this.numThreads = Math.max(numThreads, 1);
+        this.useXNNPACK = useXNNPACK;
+        this.useNNAPI = useNNAPI;
+        this.allowFp16 = allowFp16;
+    }
+
+    /** The configurations tried by {@link #createFastest}, starting with {@link #CPU}. */
+    public static List<InterpreterConfig> candidates() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        // The detection and recognition stages run concurrently, so leave them a core each.
+        int threads = Math.max(Math.min(cores / 2, 4), 1);
+
+        List<InterpreterConfig> configs = new ArrayList<>();
+        configs.add(CPU);
+        configs.add(new InterpreterConfig(1, true, false, false));
+        if (threads > 1) {
+            configs.add(new InterpreterConfig(threads, false, false, false));
+            configs.add(new InterpreterConfig(threads, true, false, false));
+        }
+        configs.add(new InterpreterConfig(threads, false, true, false));
+        configs.add(new InterpreterConfig(threads, false, true, true));
+        return configs;
+    }
+
+    public Interpreter.Options toOptions() {
+        Interpreter.Options options = new Interpreter.Options();
+        options.setNumThreads(numThreads);
+        options.setUseXNNPACK(useXNNPACK);
+        options.setUseNNAPI(useNNAPI);
+        options.setAllowFp16PrecisionForFp32(allowFp16);
+        return options;
+    }
+
+    /**
+     * Creates an interpreter with this configuration, or a plain CPU one if it is not
+     * supported here.
+     */
+    public Interpreter create(ByteBuffer model) {
+        try {
+            return new Interpreter(model, toOptions());
+        } catch (Exception e) {
+            LOGGER.w("Interpreter %s not supported, falling back to CPU: %s", this, e);
+            return new Interpreter(model);
+        }
+    }
+
+    /**
+     * Times a few warm-up inferences of every candidate and keeps the fastest interpreter.
+     * Candidates that fail to build or to run are skipped; if all of them fail, the plain CPU
+     * interpreter is returned.
+     *
+     * @param model The model, shared by every candidate.
+     * @param candidates The configurations to try.
+     */
+    public static Interpreter createFastest(ByteBuffer model, List<InterpreterConfig> candidates) {
+        List<String> report = new ArrayList<>();
+        Interpreter best = createFastest(new TfLiteBackend(model), candidates, report);
+        // Logged only once the probe is done, nothing but the backend runs in its loop.
+        for (String line : report) {
+            LOGGER.i("%s", line);
+        }
+
+        return best != null ? best : new Interpreter(model);
+    }
+
+    /**
+     * The probe behind {@link #createFastest(ByteBuffer, List)}.
+     *
+     * @param report Receives one line per candidate with its time or why it failed, and the
+     *               configuration that was picked.
+     * @return The fastest interpreter, or null if every candidate failed.
+     */
+    static <T> T createFastest(
+            Backend<T> backend, List<InterpreterConfig> candidates, List<String> report) {
+        T best = null;
+        InterpreterConfig bestConfig = null;
+        long bestTime = Long.MAX_VALUE;
+
+        for (InterpreterConfig config : candidates) {
+            T interpreter = null;
+            try {
+                interpreter = backend.create(config);
+                long time = time(backend.inference(interpreter));
+                report.add("Interpreter " + config + ": " + time + " us per inference");
+
+                if (time < bestTime) {
+                    if (best != null) {
+                        backend.close(best);
+                    }
+                    best = interpreter;
+                    bestConfig = config;
+                    bestTime = time;
+                    interpreter = null;
+                }
+            } catch (Exception | LinkageError e) {
+                // A missing native library surfaces as an UnsatisfiedLinkError.
+                report.add("Interpreter " + config + " not supported: " + e);
+            } finally {
+                if (interpreter != null) {
+                    backend.close(interpreter);
+                }
+            }
+        }
+
+        if (best != null) {
+            report.add("Using interpreter " + bestConfig);
+        }
+        return best;
+    }
+
+    /** Average microseconds per inference, after warming up. */
+    private static long time(Runnable inference) {
+        for (int i = 0; i < WARMUP_RUNS; ++i) {
+            inference.run();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < TIMED_RUNS; ++i) {
+            inference.run();
+        }
+        return (System.nanoTime() - start) / TIMED_RUNS / 1000;
+    }
+
+    private static void run(Interpreter interpreter, Object[] inputs, Map<Integer, Object> outputs) {
+        for (Object input : inputs) {
+            ((ByteBuffer) input).rewind();
+        }
+        for (Object output : outputs.values()) {
+            ((ByteBuffer) output).rewind();
+        }
+        interpreter.runForMultipleInputsOutputs(inputs, outputs);
+    }
+
+    @Override
+    public String toString() {
+        return "threads=" + numThreads
+                + (useXNNPACK ? " xnnpack" : "")
+                + (useNNAPI ? " nnapi" : "")
+                + (allowFp16 ? " fp16" : "");
+    }
+}
@@ -1,12 +1,16 @@
 package pp.facerecognizer.ml;
 
-import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import pp.facerecognizer.env.FileUtils;
 
@@ -15,29 +19,23 @@ import pp.facerecognizer.env.FileUtils;
  * This is a java wrapper of LibSVM
  */
 
-public class LibSVM {
-    private String LOG_TAG = "LibSVM";
+public class LibSVM implements Classifier {
+    private static final String LOG_TAG = "LibSVM";
     private String DATA_PATH = FileUtils.ROOT + File.separator + FileUtils.DATA_FILE;
     private String MODEL_PATH = FileUtils.ROOT + File.separator + FileUtils.MODEL_FILE;
+    private String STORE_PATH = FileUtils.ROOT + File.separator + FileUtils.STORE_FILE;
 
-    private int index;
-    private double prob;
+    private EmbeddingStore store;
 
-    public class Prediction {
-        private int index;
-        private float prob;
+    // Training set copied out of the store, reused across enrollments.
+    private FloatBuffer trainingData;
+    private int[] trainingLabels = new int[0];
 
-        Prediction(int index, float prob) {
-            this.index = index;
-            this.prob = prob;
-        }
-        public int getIndex() {
-            return index;
-        }
-        public float getProb() {
-            return prob;
-        }
-    }
+    // Writes the trained model in the background, predictions never wait for the disk.
+    private final ExecutorService persister = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(runnable, "LibSVM-persist"));
+
+    private static final int BYTE_SIZE_OF_FLOAT = 4;
 
     static {
         System.loadLibrary("jnilibsvm");
@@ -45,54 +43,178 @@ public class LibSVM {
 
     // connect the native functions
     private native void testLog(String log);
-    private native void jniSvmTrain(String cmd);
-    private native void jniSvmPredict(String cmd, FloatBuffer buf, int len);
+    private native boolean jniSvmTrainDense(
+            FloatBuffer x, int[] labels, int count, int dim, boolean incremental);
+    private native boolean jniSvmLoadModel(String modelPath);
+    private native boolean jniSvmSaveModel(String modelPath);
+    private native int jniSvmPredict(FloatBuffer buf, int len, int[] labels, float[] probs);
     private native void jniSvmScale(String cmd, String fileOutPath);
+    private static native long jniSvmFitDense(FloatBuffer x, int[] labels, int count, int dim);
+    private static native int jniSvmPredictDetached(
+            long model, FloatBuffer buf, int len, int[] labels, float[] probs);
+    private static native void jniSvmFreeDetached(long model);
 
     // public interfaces
-    private void train(String cmd) {
-        jniSvmTrain(cmd);
-    }
-    private void predict(String cmd, FloatBuffer buf, int len) {
-        jniSvmPredict(cmd, buf, len);
+    private void loadModel(String modelPath) {
+        if (!jniSvmLoadModel(modelPath)) {
+            Log.e(LOG_TAG, "Failed to load model " + modelPath);
+        }
     }
     private void scale(String cmd, String fileOutPath) {
         jniSvmScale(cmd, fileOutPath);
     }
 
-    public void train(int label, ArrayList<float[]> list) {
-        StringBuilder builder = new StringBuilder();
+    @Override
+    public void enroll(int label, List<float[]> embeddings) {
+        train(label, embeddings);
+    }
 
-        for (int i = 0; i < list.size(); i++) {
-            float[] array = list.get(i);
-            builder.append(label);
-            for (int j = 0; j < array.length; j++) {
-                builder.append(" ").append(j).append(":").append(array[j]);
-            }
-            if (i < list.size() - 1) builder.append(System.lineSeparator());
+    public void train(int label, List<float[]> list) {
+        try {
+            store.append(label, list);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to store embeddings", e);
+            return;
         }
-        FileUtils.appendText(builder.toString(), FileUtils.DATA_FILE);
 
-        train();
+        // Only the classifiers between this label and the others need solving.
+        train(true);
     }
 
+    /**
+     * Retrains on the whole store in memory and swaps the model in for prediction. The model
+     * file is written asynchronously.
+     */
     public void train() {
-        String options = "-t 0 -b 1";
-        String cmd = TextUtils.join(" ", Arrays.asList(options, DATA_PATH, MODEL_PATH));
-        train(cmd);
+        train(false);
+    }
+
+    /**
+     * @param incremental Reuse the pairwise classifiers of the previous training whose two
+     *                    classes gained no samples since. The first training of a session is
+     *                    always a full one.
+     */
+    private synchronized void train(boolean incremental) {
+        EmbeddingStore.Snapshot snapshot;
+        try {
+            snapshot = store.snapshot();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to read embeddings", e);
+            return;
+        }
+
+        int count = snapshot.size();
+        int dim = store.getDimension();
+        if (trainingData == null || trainingData.capacity() < count * dim) {
+            trainingData = ByteBuffer.allocateDirect(count * dim * BYTE_SIZE_OF_FLOAT)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+        }
+        if (trainingLabels.length < count) {
+            trainingLabels = new int[count];
+        }
+
+        trainingData.clear();
+        for (int i = 0; i < count; ++i) {
+            trainingLabels[i] = snapshot.getLabel(i);
+            trainingData.put(snapshot.getEmbedding(i));
+        }
+        trainingData.rewind();
+
+        if (!jniSvmTrainDense(trainingData, trainingLabels, count, dim, incremental)) {
+            Log.e(LOG_TAG, "Failed to train on " + count + " embeddings");
+            return;
+        }
+
+        persister.execute(() -> {
+            if (!jniSvmSaveModel(MODEL_PATH)) {
+                Log.e(LOG_TAG, "Failed to save model " + MODEL_PATH);
+            }
+        });
     }
 
+    /**
+     * A model trained by {@link #fit} that lives next to the resident one. Not thread safe,
+     * and it holds native memory until it is closed.
+     */
+    public static class Model implements Predictor, Closeable {
+        private final int dimension;
+        private long handle;
+
+        private final int[] labels = new int[1];
+        private final float[] probs = new float[1];
+
+        private Model(long handle, int dimension) {
+            this.handle = handle;
+            this.dimension = dimension;
+        }
+
+        @Override
+        public Prediction predict(FloatBuffer buffer) {
+            int count = handle != 0
+                    ? jniSvmPredictDetached(handle, buffer, dimension, labels, probs)
+                    : -1;
+            if (count < 1) {
+                return new Prediction(UNKNOWN, 0);
+            }
+            return new Prediction(labels[0], probs[0]);
+        }
+
+        @Override
+        public void close() {
+            if (handle != 0) {
+                jniSvmFreeDetached(handle);
+                handle = 0;
+            }
+        }
+    }
+
+    /**
+     * Trains a model on the given rows instead of the store. It is neither installed for
+     * prediction nor persisted, and the pairs cached for incremental enrollment stay as they
+     * are, so classifiers can be compared without disturbing recognition.
+     *
+     * @return The model, which the caller has to close, or null if training failed.
+     */
+    public static Model fit(FloatBuffer data, int[] labels, int count, int dim) {
+        long handle = jniSvmFitDense(data, labels, count, dim);
+        if (handle == 0) {
+            Log.e(LOG_TAG, "Failed to fit " + count + " embeddings");
+            return null;
+        }
+        return new Model(handle, dim);
+    }
+
+    /**
+     * Thread safe. Predictions run in parallel with each other, and a training swaps its
+     * model in between two predictions.
+     */
+    @Override
     public Prediction predict(FloatBuffer buffer) {
-        String options = "-b 1";
-        String cmd = TextUtils.join(" ", Arrays.asList(options, MODEL_PATH));
+        int[] labels = new int[1];
+        float[] probs = new float[1];
+        predict(buffer, labels, probs);
+        return new Prediction(labels[0], probs[0]);
+    }
 
-        predict(cmd, buffer, FaceNet.EMBEDDING_SIZE);
-        return new Prediction(index, (float) prob);
+    /**
+     * Thread safe, like {@link #predict(FloatBuffer)}. The labels are ranked by their pairwise
+     * coupled probabilities; a model trained without probabilities only gives the winner.
+     */
+    @Override
+    public int predict(FloatBuffer buffer, int[] labels, float[] probs) {
+        int count = jniSvmPredict(buffer, FaceNet.EMBEDDING_SIZE, labels, probs);
+        if (count < 1) {
+            labels[0] = UNKNOWN;
+            probs[0] = 0;
+            return 1;
+        }
+        return count;
     }
 
     // singleton for the easy access
     private static LibSVM svm;
-    public static LibSVM getInstance() {
+    public static synchronized LibSVM getInstance() {
         if (svm == null) {
             svm = new LibSVM();
         }
@@ -101,5 +223,29 @@ public class LibSVM {
 
     private LibSVM() {
         Log.d(LOG_TAG, "LibSVM init");
+        openStore();
+        loadModel(MODEL_PATH);
+    }
+
+    /** The labelled embeddings the model is trained on. */
+    public EmbeddingStore getStore() {
+        return store;
+    }
+
+    private void openStore() {
+        File storeFile = new File(STORE_PATH);
+        File dataFile = new File(DATA_PATH);
+
+        try {
+            if (!storeFile.exists() && dataFile.exists()) {
+                // One-time migration of the legacy text training data.
+                store = EmbeddingStore.migrate(dataFile, storeFile, FaceNet.EMBEDDING_SIZE);
+                Log.i(LOG_TAG, "Migrated " + store.size() + " embeddings to " + STORE_PATH);
+            } else {
+                store = EmbeddingStore.open(storeFile, FaceNet.EMBEDDING_SIZE);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 }
@@ -0,0 +1,340 @@
+package pp.facerecognizer.ml;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Nearest-centroid or k-nearest-neighbour classification of embeddings.
+ *
+ * Enrollment only appends to the gallery, so a new person is recognized immediately without
+ * any training. A face further than the threshold from its best match is reported as
+ * {@link Classifier#UNKNOWN}.
+ */
+public class NearestNeighbor implements Classifier {
+    private static final String LOG_TAG = "NearestNeighbor";
+
+    public enum Metric {
+        /** 1 - cosine similarity, on L2 normalized embeddings. */
+        COSINE,
+        /** Euclidean distance. */
+        L2
+    }
+
+    private final int k;
+    private final Metric metric;
+    private final float threshold;
+    private final int dimension;
+    private final EmbeddingStore store;
+
+    // Gallery, one row of dimension floats per sample.
+    private float[] embeddings = new float[0];
+    private int[] labels = new int[0];
+    private int size = 0;
+
+    // Running sum and count per label, the centroid is derived on demand.
+    private float[] centroidSums = new float[0];
+    private float[] centroids = new float[0];
+    private int[] centroidCounts = new int[0];
+    private int[] centroidLabels = new int[0];
+    private int numCentroids = 0;
+    private boolean centroidsDirty = false;
+
+    // Per-query scratch.
+    private final float[] query;
+    private final int[] neighbors;
+    private final float[] neighborDistances;
+    private int[] candidateLabels = new int[0];
+    private float[] candidateDistances = new float[0];
+    private float[] candidateScores = new float[0];
+    private final int[] topLabel = new int[1];
+    private final float[] topProb = new float[1];
+
+    /**
+     * @param k Number of neighbours that vote, or 0 to compare against class centroids.
+     * @param metric The distance between embeddings.
+     * @param threshold Faces further than this from their match are unknown.
+     * @param dimension The size of an embedding.
+     * @param store Loaded into the gallery and appended to on enrollment, or null to keep the
+     *              gallery in memory only.
+     */
+    public NearestNeighbor(
+            int k, Metric metric, float threshold, int dimension, EmbeddingStore store) {
+        this.k = k;
+        this.metric = metric;
+        this.threshold = threshold;
+        this.dimension = dimension;
+        this.store = store;
+
+        query = new float[dimension];
+        neighbors = new int[Math.max(k, 1)];
+        neighborDistances = new float[Math.max(k, 1)];
+
+        if (store != null) {
+            load(store);
+        }
+    }
+
+    private void load(EmbeddingStore store) {
+        try {
+            EmbeddingStore.Snapshot snapshot = store.snapshot();
+            float[] row = new float[dimension];
+            for (int i = 0; i < snapshot.size(); ++i) {
+                snapshot.getEmbedding(i).get(row);
+                add(snapshot.getLabel(i), row);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to read embeddings", e);
+        }
+    }
+
+    /** The number of samples in the gallery. */
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void enroll(int label, List<float[]> embeddings) {
+        if (store != null) {
+            try {
+                store.append(label, embeddings);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to store embeddings", e);
+            }
+        }
+
+        for (float[] embedding : embeddings) {
+            add(label, embedding);
+        }
+    }
+
+    private void add(int label, float[] embedding) {
+        if (size == labels.length) {
+            int capacity = Math.max(2 * labels.length, 64);
+            labels = Arrays.copyOf(labels, capacity);
+            embeddings = Arrays.copyOf(embeddings, capacity * dimension);
+        }
+
+        int offset = size * dimension;
+        System.arraycopy(embedding, 0, embeddings, offset, dimension);
+        if (metric == Metric.COSINE) {
+            normalize(embeddings, offset);
+        }
+        labels[size++] = label;
+
+        int c = centroidIndex(label);
+        float[] sums = centroidSums;
+        for (int i = 0; i < dimension; ++i) {
+            sums[c * dimension + i] += embeddings[offset + i];
+        }
+        ++centroidCounts[c];
+        centroidsDirty = true;
+    }
+
+    private int centroidIndex(int label) {
+        for (int c = 0; c < numCentroids; ++c) {
+            if (centroidLabels[c] == label) {
+                return c;
+            }
+        }
+
+        if (numCentroids == centroidLabels.length) {
+            int capacity = Math.max(2 * centroidLabels.length, 16);
+            centroidLabels = Arrays.copyOf(centroidLabels, capacity);
+            centroidCounts = Arrays.copyOf(centroidCounts, capacity);
+            centroidSums = Arrays.copyOf(centroidSums, capacity * dimension);
+        }
+        centroidLabels[numCentroids] = label;
+        centroidCounts[numCentroids] = 0;
+        return numCentroids++;
+    }
+
+    private void updateCentroids() {
+        if (centroids.length < numCentroids * dimension) {
+            centroids = new float[centroidSums.length];
+        }
+        for (int c = 0; c < numCentroids; ++c) {
+            int offset = c * dimension;
+            for (int i = 0; i < dimension; ++i) {
+                centroids[offset + i] = centroidSums[offset + i] / centroidCounts[c];
+            }
+            if (metric == Metric.COSINE) {
+                normalize(centroids, offset);
+            }
+        }
+        centroidsDirty = false;
+    }
+
+    @Override
+    public synchronized Prediction predict(FloatBuffer embedding) {
+        predict(embedding, topLabel, topProb);
+        return new Prediction(topLabel[0], topProb[0]);
+    }
+
+    @Override
+    public synchronized int predict(FloatBuffer embedding, int[] topLabels, float[] topProbs) {
+        if (size == 0) {
+            topLabels[0] = UNKNOWN;
+            topProbs[0] = 0;
+            return 1;
+        }
+
+        for (int i = 0; i < dimension; ++i) {
+            query[i] = embedding.get(i);
+        }
+        if (metric == Metric.COSINE) {
+            normalize(query, 0);
+        }
+
+        int candidates;
+        if (k == 0) {
+            if (centroidsDirty) {
+                updateCentroids();
+            }
+            candidates = rankCentroids();
+        } else {
+            candidates = rankNeighbors(nearest());
+        }
+
+        int count = 0;
+        int limit = Math.min(candidates, topLabels.length);
+        for (int n = 0; n < limit; ++n) {
+            select(n, candidates);
+
+            float distance = candidateDistances[n];
+            float confidence = Math.max(0, 1 - distance / 2);
+            if (distance > threshold) {
+                if (n == 0) {
+                    topLabels[0] = UNKNOWN;
+                    topProbs[0] = confidence;
+                    return 1;
+                }
+                continue;
+            }
+            topLabels[count] = candidateLabels[n];
+            topProbs[count] = confidence;
+            ++count;
+        }
+        return count;
+    }
+
+    /** Makes every centroid a candidate, the closer the better. */
+    private int rankCentroids() {
+        ensureCandidates(numCentroids);
+        for (int c = 0; c < numCentroids; ++c) {
+            float d = distance(centroids, c * dimension);
+            candidateLabels[c] = centroidLabels[c];
+            candidateDistances[c] = d;
+            candidateScores[c] = -d;
+        }
+        return numCentroids;
+    }
+
+    /**
+     * Makes every label among the neighbours a candidate, scored by its inverse distance
+     * weight, at the distance of its closest neighbour.
+     */
+    private int rankNeighbors(int found) {
+        ensureCandidates(found);
+        int candidates = 0;
+        for (int n = 0; n < found; ++n) {
+            int label = labels[neighbors[n]];
+            int c = 0;
+            while (c < candidates && candidateLabels[c] != label) {
+                ++c;
+            }
+            if (c == candidates) {
+                candidateLabels[c] = label;
+                candidateDistances[c] = neighborDistances[n];
+                candidateScores[c] = 0;
+                ++candidates;
+            }
+            candidateScores[c] += 1 / (neighborDistances[n] + 1e-6f);
+        }
+        return candidates;
+    }
+
+    /** Moves the best of the candidates from position n on to position n. */
+    private void select(int n, int candidates) {
+        int best = n;
+        for (int c = n + 1; c < candidates; ++c) {
+            if (candidateScores[c] > candidateScores[best]) {
+                best = c;
+            }
+        }
+
+        int label = candidateLabels[best];
+        float distance = candidateDistances[best];
+        float score = candidateScores[best];
+        candidateLabels[best] = candidateLabels[n];
+        candidateDistances[best] = candidateDistances[n];
+        candidateScores[best] = candidateScores[n];
+        candidateLabels[n] = label;
+        candidateDistances[n] = distance;
+        candidateScores[n] = score;
+    }
+
+    private void ensureCandidates(int count) {
+        if (candidateLabels.length < count) {
+            candidateLabels = new int[count];
+            candidateDistances = new float[count];
+            candidateScores = new float[count];
+        }
+    }
+
+    /** Fills the closest samples, nearest first, and returns how many there are. */
+    private int nearest() {
+        int found = 0;
+        for (int s = 0; s < size; ++s) {
+            float d = distance(embeddings, s * dimension);
+            if (found == k && d >= neighborDistances[k - 1]) {
+                continue;
+            }
+
+            int n = found < k ? found++ : k - 1;
+            while (n > 0 && neighborDistances[n - 1] > d) {
+                neighbors[n] = neighbors[n - 1];
+                neighborDistances[n] = neighborDistances[n - 1];
+                --n;
+            }
+            neighbors[n] = s;
+            neighborDistances[n] = d;
+        }
+        return found;
+    }
+
+    private float distance(float[] rows, int offset) {
+        if (metric == Metric.COSINE) {
+            float dot = 0;
+            for (int i = 0; i < dimension; ++i) {
+                dot += query[i] * rows[offset + i];
+            }
+            return 1 - dot;
+        }
+
+        float sum = 0;
+        for (int i = 0; i < dimension; ++i) {
+            float diff = query[i] - rows[offset + i];
+            sum += diff * diff;
+        }
+        return (float) Math.sqrt(sum);
+    }
+
+    private void normalize(float[] values, int offset) {
+        float sum = 0;
+        for (int i = 0; i < dimension; ++i) {
+            sum += values[offset + i] * values[offset + i];
+        }
+        if (sum == 0) {
+            return;
+        }
+
+        float scale = (float) (1 / Math.sqrt(sum));
+        for (int i = 0; i < dimension; ++i) {
+            values[offset + i] *= scale;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package pp.facerecognizer.ml;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Maps a {@link FaceNet} embedding to a label, from samples it was built with once.
+ *
+ * Unlike a {@link Classifier} it cannot enroll and need not be thread safe.
+ */
+public interface Predictor {
+    Classifier.Prediction predict(FloatBuffer embedding);
+}
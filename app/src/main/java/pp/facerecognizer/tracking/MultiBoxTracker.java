@@ -29,6 +29,7 @@ import android.util.Pair;
 import android.util.TypedValue;
 import android.widget.Toast;
 
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
@@ -79,6 +80,7 @@ public class MultiBoxTracker {
         float detectionConfidence;
         int color;
         String title;
+        Recognition recognition;
     }
 
     private final List<TrackedRecognition> trackedObjects = new LinkedList<TrackedRecognition>();
@@ -96,6 +98,9 @@ public class MultiBoxTracker {
     private int sensorOrientation;
     private Context context;
 
+    // Whether a track was lost since the last results came in.
+    private boolean lostTrack = false;
+
     public MultiBoxTracker(final Context context) {
         this.context = context;
         for (final int color : COLORS) {
@@ -157,9 +162,80 @@ public class MultiBoxTracker {
     }
 
     public synchronized void trackResults(
-            final List<Recognition> results, final byte[] frame, final long timestamp) {
+            final List<Recognition> results, final ByteBuffer frame, final long timestamp) {
         logger.i("Processing %d results from %d", results.size(), timestamp);
         processResults(timestamp, results, frame);
+        lostTrack = false;
+    }
+
+    public synchronized int getTrackedCount() {
+        return trackedObjects.size();
+    }
+
+    /**
+     * The lowest correlation of the tracked objects with their appearance, 1 if nothing is
+     * tracked and 0 without the object tracker, which cannot vouch for any box.
+     */
+    public synchronized float getMinCorrelation() {
+        if (objectTracker == null) {
+            return trackedObjects.isEmpty() ? 1.0f : 0.0f;
+        }
+
+        float minCorrelation = 1.0f;
+        for (final TrackedRecognition recognition : trackedObjects) {
+            minCorrelation =
+                    Math.min(minCorrelation, recognition.trackedObject.getCurrentCorrelation());
+        }
+        return minCorrelation;
+    }
+
+    /** Whether a tracked object was dropped since the last {@link #trackResults}. */
+    public synchronized boolean hasLostTrack() {
+        return lostTrack;
+    }
+
+    /** The distance the scene moved between the last two frames, in preview frame pixels. */
+    public synchronized float getFrameMotion() {
+        return objectTracker != null ? objectTracker.getFrameMotion() : 0.0f;
+    }
+
+    /**
+     * Finds the tracked object at a location, as long as its track is still going strong.
+     *
+     * @param location A location within the preview frame.
+     * @param minOverlap The intersection over union the tracked box needs with the location.
+     * @return The recognition the object was tracked with, or null.
+     */
+    public synchronized Recognition recall(final RectF location, final float minOverlap) {
+        if (objectTracker == null) {
+            return null;
+        }
+
+        Recognition best = null;
+        float bestOverlap = minOverlap;
+        for (final TrackedRecognition recognition : trackedObjects) {
+            if (recognition.trackedObject.getCurrentCorrelation() < MARGINAL_CORRELATION) {
+                continue;
+            }
+            final RectF trackedPos = recognition.trackedObject.getTrackedPositionInPreviewFrame();
+            if (trackedPos == null) {
+                continue;
+            }
+
+            final RectF intersection = new RectF();
+            if (!intersection.setIntersect(trackedPos, location)) {
+                continue;
+            }
+            final float intersectArea = intersection.width() * intersection.height();
+            final float totalArea = trackedPos.width() * trackedPos.height()
+                    + location.width() * location.height() - intersectArea;
+            final float intersectOverUnion = intersectArea / totalArea;
+            if (intersectOverUnion >= bestOverlap) {
+                bestOverlap = intersectOverUnion;
+                best = recognition.recognition;
+            }
+        }
+        return best;
     }
 
     public synchronized void draw(final Canvas canvas) {
@@ -202,7 +278,7 @@ public class MultiBoxTracker {
             final int h,
             final int rowStride,
             final int sensorOrienation,
-            final byte[] frame,
+            final ByteBuffer frame,
             final long timestamp) {
         if (objectTracker == null && !initialized) {
             ObjectTracker.clearInstance();
@@ -227,7 +303,7 @@ public class MultiBoxTracker {
             return;
         }
 
-        objectTracker.nextFrame(frame, null, timestamp, null, true);
+        objectTracker.nextFrame(frame, timestamp, null, true);
 
         // Clean up any objects not worth tracking any more.
         final LinkedList<TrackedRecognition> copyList =
@@ -239,6 +315,7 @@ public class MultiBoxTracker {
                 logger.v("Removing tracked object %s because NCC is %.2f", trackedObject, correlation);
                 trackedObject.stopTracking();
                 trackedObjects.remove(recognition);
+                lostTrack = true;
 
                 availableColors.add(recognition.color);
             }
@@ -246,7 +323,7 @@ public class MultiBoxTracker {
     }
 
     private void processResults(
-            final long timestamp, final List<Recognition> results, final byte[] originalFrame) {
+            final long timestamp, final List<Recognition> results, final ByteBuffer originalFrame) {
         final List<Pair<Float, Recognition>> rectsToTrack = new LinkedList<Pair<Float, Recognition>>();
 
         screenRects.clear();
@@ -287,6 +364,7 @@ public class MultiBoxTracker {
                 trackedRecognition.location = new RectF(potential.second.getLocation());
                 trackedRecognition.trackedObject = null;
                 trackedRecognition.title = potential.second.getTitle();
+                trackedRecognition.recognition = potential.second;
                 trackedRecognition.color = COLORS[trackedObjects.size()];
                 trackedObjects.add(trackedRecognition);
 
@@ -304,7 +382,7 @@ public class MultiBoxTracker {
     }
 
     private void handleDetection(
-            final byte[] frameCopy, final long timestamp, final Pair<Float, Recognition> potential) {
+            final ByteBuffer frameCopy, final long timestamp, final Pair<Float, Recognition> potential) {
         final ObjectTracker.TrackedObject potentialObject =
                 objectTracker.trackObject(potential.second.getLocation(), timestamp, frameCopy);
 
@@ -346,7 +424,10 @@ public class MultiBoxTracker {
                 if (potential.first < trackedRecognition.detectionConfidence
                         && trackedRecognition.trackedObject.getCurrentCorrelation() > MARGINAL_CORRELATION) {
                     // If track for the existing object is still going strong and the detection score was
-                    // good, reject this new object.
+                    // good, reject this new object. The same face still refreshes its identity.
+                    if (TextUtils.equals(trackedRecognition.recognition.getId(), potential.second.getId())) {
+                        trackedRecognition.recognition = potential.second;
+                    }
                     potentialObject.stopTracking();
                     return;
                 } else {
@@ -414,6 +495,7 @@ public class MultiBoxTracker {
         trackedRecognition.detectionConfidence = potential.first;
         trackedRecognition.trackedObject = potentialObject;
         trackedRecognition.title = potential.second.getTitle();
+        trackedRecognition.recognition = potential.second;
 
         // Use the color from a replaced object before taking one from the color queue.
         trackedRecognition.color =
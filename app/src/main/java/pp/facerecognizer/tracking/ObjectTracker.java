@@ -23,6 +23,7 @@ import android.graphics.PointF;
 import android.graphics.RectF;
 import android.graphics.Typeface;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -261,6 +262,10 @@ public class ObjectTracker {
 
     private long downsampledTimestamp;
 
+    // How far the centre of the frame moved over the last frame, in preview frame pixels.
+    private float frameMotion;
+    private final float[] motionPosition = new float[4];
+
     @SuppressWarnings("unused")
     public synchronized void drawOverlay(final GL10 gl,
                                          final Size cameraViewSize, final Matrix matrix) {
@@ -280,8 +285,31 @@ public class ObjectTracker {
             downsampledTimestamp = timestamp;
         }
 
+        track(uvData, timestamp, transformationMatrix, updateDebugInfo);
+    }
+
+    /**
+     * The same as {@link #nextFrame(byte[], byte[], long, float[], boolean)}, but reads the
+     * luminance straight out of a direct buffer, such as the Y plane of a camera image.
+     */
+    public synchronized void nextFrame(
+            final ByteBuffer frameData, final long timestamp, final float[] transformationMatrix,
+            final boolean updateDebugInfo) {
+        if (downsampledTimestamp != timestamp) {
+            ObjectTracker.downsampleImageBufferNative(
+                    frameWidth, frameHeight, rowStride, frameData, DOWNSAMPLE_FACTOR, downsampledFrame);
+            downsampledTimestamp = timestamp;
+        }
+
+        track(null, timestamp, transformationMatrix, updateDebugInfo);
+    }
+
+    private void track(
+            final byte[] uvData, final long timestamp, final float[] transformationMatrix,
+            final boolean updateDebugInfo) {
         // Do Lucas Kanade using the fullframe initializer.
         nextFrameNative(downsampledFrame, uvData, timestamp, transformationMatrix);
+        updateFrameMotion();
 
         timestampedDeltas.add(new TimestampedDeltas(timestamp, getKeypointsPacked(DOWNSAMPLE_FACTOR)));
         while (timestampedDeltas.size() > MAX_FRAME_HISTORY_SIZE) {
@@ -408,6 +436,31 @@ public class ObjectTracker {
         return upscaleRect(newPosition);
     }
 
+    /**
+     * Follows a box around the centre of the frame from the previous frame to the current one
+     * through the optical flow, which tells how much the scene moved as a whole.
+     */
+    private void updateFrameMotion() {
+        if (lastTimestamp == 0) {
+            return;
+        }
+
+        final float centerX = frameWidth / (2.0f * DOWNSAMPLE_FACTOR);
+        final float centerY = frameHeight / (2.0f * DOWNSAMPLE_FACTOR);
+        final float radius = Math.min(centerX, centerY) / 2;
+        getCurrentPositionNative(lastTimestamp, centerX - radius, centerY - radius,
+                centerX + radius, centerY + radius, motionPosition);
+
+        final float deltaX = (motionPosition[0] + motionPosition[2]) / 2 - centerX;
+        final float deltaY = (motionPosition[1] + motionPosition[3]) / 2 - centerY;
+        frameMotion = (float) Math.hypot(deltaX, deltaY) * DOWNSAMPLE_FACTOR;
+    }
+
+    /** The distance the scene moved between the last two frames, in preview frame pixels. */
+    public synchronized float getFrameMotion() {
+        return frameMotion;
+    }
+
     private void updateDebugHistory() {
         lastKeypoints = new FrameChange(getKeypointsNative(false));
 
@@ -611,6 +664,17 @@ public class ObjectTracker {
         return new TrackedObject(position, timestamp, downsampledFrame);
     }
 
+    /** The same as {@link #trackObject(RectF, long, byte[])}, reading a direct buffer. */
+    public synchronized TrackedObject trackObject(
+            final RectF position, final long timestamp, final ByteBuffer frameData) {
+        if (downsampledTimestamp != timestamp) {
+            ObjectTracker.downsampleImageBufferNative(
+                    frameWidth, frameHeight, rowStride, frameData, DOWNSAMPLE_FACTOR, downsampledFrame);
+            downsampledTimestamp = timestamp;
+        }
+        return new TrackedObject(position, timestamp, downsampledFrame);
+    }
+
     public synchronized TrackedObject trackObject(final RectF position, final byte[] frameData) {
         return new TrackedObject(position, lastTimestamp, frameData);
     }
@@ -661,4 +725,7 @@ public class ObjectTracker {
 
     protected static native void downsampleImageNative(
             int width, int height, int rowStride, byte[] input, int factor, byte[] output);
+
+    protected static native void downsampleImageBufferNative(
+            int width, int height, int rowStride, ByteBuffer input, int factor, byte[] output);
 }
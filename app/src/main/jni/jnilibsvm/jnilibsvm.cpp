@@ -6,6 +6,7 @@
 #include <string.h>
 #include <stdio.h>
 #include <stdlib.h>
+#include <stdint.h>
 #include <vector>
 #include "./libsvm/svm-train.h"
 #include "./libsvm/svm-predict.h"
@@ -48,62 +49,131 @@ extern "C" void JNI_FUNC_NAME(jniSvmScale)(JNIEnv *env, jobject obj, jstring cmd
 }
 
 
-// helper function to be called in Java for making svm-train
-extern "C" void JNI_FUNC_NAME(jniSvmTrain)(JNIEnv *env, jobject obj, jstring cmdIn){
-	const char *cmd = env->GetStringUTFChars(cmdIn, 0);
-	debug("jniSvmTrain cmd = %s", cmd);
+// helper function to be called in Java for training the resident model from memory
+extern "C" jboolean JNI_FUNC_NAME(jniSvmTrainDense)(JNIEnv *env, jobject obj, jobject buf, jintArray labelsIn, jint count, jint dim, jboolean incremental){
+	jfloat* x = (jfloat*) env->GetDirectBufferAddress(buf);
+	jint* labels = env->GetIntArrayElements(labelsIn, NULL);
+	debug("jniSvmTrainDense count = %d, dim = %d, incremental = %d", count, dim, incremental);
 
-	std::vector<char*> v;
+	struct svm_model *model = svmtrain::train_dense(x, labels, count, dim, incremental);
 
-	// add dummy head to meet argv/command format
-	std::string cmdString = std::string("dummy ")+std::string(cmd);
+	env->ReleaseIntArrayElements(labelsIn, labels, JNI_ABORT);
 
-	cmdToArgv(cmdString, v);
+	if (model == NULL) {
+		return JNI_FALSE;
+	}
+	return svmpredict::install_model(model) == 0 ? JNI_TRUE : JNI_FALSE;
+}
 
-	// make svm train by libsvm
-	svmtrain::main(v.size(),&v[0]);
+// helper function to be called in Java for persisting the resident model
+extern "C" jboolean JNI_FUNC_NAME(jniSvmSaveModel)(JNIEnv *env, jobject obj, jstring modelPathIn){
+	const char *modelPath = env->GetStringUTFChars(modelPathIn, 0);
 
+	int ret = svmpredict::save_model(modelPath);
 
-	// free vector memory
-	for(int i=0;i<v.size();i++){
-		free(v[i]);
-	}
+	// free java object memory
+	env->ReleaseStringUTFChars(modelPathIn, modelPath);
+
+	return ret == 0 ? JNI_TRUE : JNI_FALSE;
+}
+
+// helper function to be called in Java for (re)loading the resident model
+extern "C" jboolean JNI_FUNC_NAME(jniSvmLoadModel)(JNIEnv *env, jobject obj, jstring modelPathIn){
+	const char *modelPath = env->GetStringUTFChars(modelPathIn, 0);
+	debug("jniSvmLoadModel modelPath = %s", modelPath);
+
+	int ret = svmpredict::load_model(modelPath);
 
 	// free java object memory
-	env->ReleaseStringUTFChars(cmdIn, cmd);
+	env->ReleaseStringUTFChars(modelPathIn, modelPath);
+
+	return ret == 0 ? JNI_TRUE : JNI_FALSE;
 }
 
-// helper function to be called in Java for making svm-predict
-extern "C" void JNI_FUNC_NAME(jniSvmPredict)(JNIEnv *env, jobject obj, jstring cmdIn, jobject buf, jint len){
-	const char *cmd = env->GetStringUTFChars(cmdIn, 0);
-	debug("jniSvmPredict cmd = %s", cmd);
+// most labels jniSvmPredict returns per call
+static const int max_top_labels = 16;
 
+// how many labels fit into the caller's arrays
+static int top_labels(JNIEnv *env, jintArray labelsOut, jfloatArray probsOut){
+	int k = env->GetArrayLength(labelsOut);
+	if (env->GetArrayLength(probsOut) < k) k = env->GetArrayLength(probsOut);
+	if (k > max_top_labels) k = max_top_labels;
+	return k;
+}
+
+// copies count ranked labels into the caller's arrays, returns count or -1 if there are none
+static jint put_top_labels(JNIEnv *env, jintArray labelsOut, jfloatArray probsOut, int count, const int *labels, const double *probs){
+	if (count <= 0) {
+		return -1;
+	}
+
+	jint labelsResult[max_top_labels];
+	jfloat probsResult[max_top_labels];
+	for (int i = 0; i < count; i++) {
+		labelsResult[i] = labels[i];
+		probsResult[i] = (jfloat) probs[i];
+	}
+	env->SetIntArrayRegion(labelsOut, 0, count, labelsResult);
+	env->SetFloatArrayRegion(probsOut, 0, count, probsResult);
+	return count;
+}
+
+// helper function to be called in Java for making svm-predict, re-entrant: the most probable
+// labels and their probabilities go into the caller's arrays, most probable first, and the
+// number written is returned (-1 without a model or a direct buffer)
+extern "C" jint JNI_FUNC_NAME(jniSvmPredict)(JNIEnv *env, jobject obj, jobject buf, jint len, jintArray labelsOut, jfloatArray probsOut){
 	jfloat* input = (jfloat*) env->GetDirectBufferAddress(buf);
+	if (input == NULL) {
+		debug("jniSvmPredict needs a direct buffer");
+		return -1;
+	}
 
-	std::vector<char*> v;
+	int k = top_labels(env, labelsOut, probsOut);
+	int labels[max_top_labels];
+	double probs[max_top_labels];
 
-	// add dummy head to meet argv/command format
-	std::string cmdString = std::string("dummy ")+std::string(cmd);
+	// predict on the resident model
+	int count = svmpredict::predict_top(input,len,k,labels,probs);
+	return put_top_labels(env, labelsOut, probsOut, count, labels, probs);
+}
 
-	cmdToArgv(cmdString, v);
+// helper function to be called in Java for training a model that is evaluated but never
+// installed, returns its handle or 0 on failure
+extern "C" jlong JNI_FUNC_NAME(jniSvmFitDense)(JNIEnv *env, jclass clazz, jobject buf, jintArray labelsIn, jint count, jint dim){
+	jfloat* x = (jfloat*) env->GetDirectBufferAddress(buf);
+	jint* labels = env->GetIntArrayElements(labelsIn, NULL);
+	debug("jniSvmFitDense count = %d, dim = %d", count, dim);
 
-    int idx = 0;
-    double prob = 0.0;
+	struct svm_model *model = svmtrain::train_dense_detached(x, labels, count, dim);
 
-	// make svm train by libsvm
-	svmpredict::main(v.size(),&v[0],input,len,&idx,&prob);
+	env->ReleaseIntArrayElements(labelsIn, labels, JNI_ABORT);
 
-    jclass jclazz = env->GetObjectClass(obj);
-    env->SetIntField(obj, env->GetFieldID(jclazz, "index", "I"), idx);
-    env->SetDoubleField(obj, env->GetFieldID(jclazz, "prob", "D"), prob);
+	if (model == NULL) {
+		return 0;
+	}
+	return (jlong) (intptr_t) svmpredict::detach_model(model);
+}
 
-	// free vector memory
-	for(int i=0;i<v.size();i++){
-		free(v[i]);
+// as jniSvmPredict on a model from jniSvmFitDense, not re-entrant per model
+extern "C" jint JNI_FUNC_NAME(jniSvmPredictDetached)(JNIEnv *env, jclass clazz, jlong handle, jobject buf, jint len, jintArray labelsOut, jfloatArray probsOut){
+	jfloat* input = (jfloat*) env->GetDirectBufferAddress(buf);
+	if (input == NULL) {
+		debug("jniSvmPredictDetached needs a direct buffer");
+		return -1;
 	}
+	struct svmpredict::detached_model *model = (struct svmpredict::detached_model *) (intptr_t) handle;
 
-	// free java object memory
-	env->ReleaseStringUTFChars(cmdIn, cmd);
+	int k = top_labels(env, labelsOut, probsOut);
+	int labels[max_top_labels];
+	double probs[max_top_labels];
+
+	int count = svmpredict::predict_detached_top(model,input,len,k,labels,probs);
+	return put_top_labels(env, labelsOut, probsOut, count, labels, probs);
+}
+
+extern "C" void JNI_FUNC_NAME(jniSvmFreeDetached)(JNIEnv *env, jclass clazz, jlong handle){
+	struct svmpredict::detached_model *model = (struct svmpredict::detached_model *) (intptr_t) handle;
+	svmpredict::free_detached_model(&model);
 }
 
 
@@ -1,155 +1,269 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <pthread.h>
 #include "../common.h"
 #include "svm-predict.h"
 #include "svm.h"
 
 namespace svmpredict {
-	int print_null(const char *s,...) {return 0;}
+	// The model stays resident between predictions and is only replaced by
+	// install_model(), so a prediction costs no file I/O. Predictions share it
+	// under a read lock and keep their scratch memory per thread, so any
+	// number of threads can predict at once.
+	struct resident_model {
+		struct svm_model *model;
+		struct svm_dense_weights *weights;
+		int predict_probability;
+		unsigned long generation;	// bumped on every swap
+	};
 
-	//static int (*info)(const char *fmt,...) = &printf;
-	//static void (*info)(const char *fmt,...) = &debug;
+	static struct resident_model resident = {NULL, NULL, 0, 0};
+	static pthread_rwlock_t resident_lock = PTHREAD_RWLOCK_INITIALIZER;
 
-	struct svm_node *x;
-	int max_nr_attr = 64;
+	// Scratch memory of one thread, rebuilt when the resident model changes
+	struct thread_workspace {
+		unsigned long generation;
+		struct svm_predict_workspace *workspace;
+		double *prob_estimates;
+		struct svm_node *x;
+		int max_nr_attr;
 
-	struct svm_model* model;
-	int predict_probability=0;
+		thread_workspace() : generation(0), workspace(NULL), prob_estimates(NULL), x(NULL), max_nr_attr(0) {}
 
-	static char *line = NULL;
-	static int max_line_len;
+		~thread_workspace()
+		{
+			release();
+			free(x);
+		}
+
+		void release()
+		{
+			svm_free_predict_workspace(&workspace);
+			free(prob_estimates);
+			prob_estimates = NULL;
+		}
+	};
+
+	static thread_local thread_workspace local;
 
-	static char* readline(FILE *input)
+	static void destroy(struct resident_model *r)
 	{
-		int len;
+		svm_free_dense_weights(&r->weights);
+		if(r->model != NULL)
+			svm_free_and_destroy_model(&r->model);
+	}
 
-		if(fgets(line,max_line_len,input) == NULL)
-			return NULL;
+	int load_model(const char *model_file_name)
+	{
+		struct svm_model *model;
 
-		while(strrchr(line,'\n') == NULL)
+		// parse outside of the lock so that predictions keep running on the old model
+		if((model=svm_load_model(model_file_name))==0)
 		{
-			max_line_len *= 2;
-			line = (char *) realloc(line,max_line_len);
-			len = (int) strlen(line);
-			if(fgets(line+len,max_line_len-len,input) == NULL)
-				break;
+			debug("can't open model file %s\n",model_file_name);
+			return -1;
 		}
-		return line;
+
+		return install_model(model);
 	}
 
-	void exit_input_error(int line_num)
+	int install_model(struct svm_model *model)
 	{
-		debug("Wrong input format at line %d\n", line_num);
-		exit(1);
+		struct resident_model r;
+		r.model = model;
+		r.weights = svm_create_dense_weights(model);
+
+		int svm_type=svm_get_svm_type(model);
+		r.predict_probability = svm_check_probability_model(model) &&
+				(svm_type==C_SVC || svm_type==NU_SVC);
+		if(!r.predict_probability)
+			debug("Model does not support probabiliy estimates\n");
+
+		pthread_rwlock_wrlock(&resident_lock);
+		struct resident_model old = resident;
+		r.generation = old.generation+1;
+		resident = r;
+		pthread_rwlock_unlock(&resident_lock);
+
+		// no prediction can still be reading the old model
+		destroy(&old);
+		return 0;
 	}
 
-	void predict(float *input, int len, int *index, double *prob)
+	int save_model(const char *model_file_name)
 	{
+		int ret = -1;
 
-		int svm_type=svm_get_svm_type(model);
-		int nr_class=svm_get_nr_class(model);
-		double *prob_estimates=NULL;
-		int j;
+		pthread_rwlock_rdlock(&resident_lock);
+		if(resident.model != NULL)
+			ret = svm_save_model(model_file_name,resident.model);
+		pthread_rwlock_unlock(&resident_lock);
 
-		if(predict_probability)
-		{
-			if (svm_type==NU_SVR || svm_type==EPSILON_SVR)
-				debug("Prob. model for test data: target value = predicted value + z,\nz: Laplace distribution e^(-|z|/sigma)/(2sigma),sigma=%g\n",svm_get_svr_probability(model));
-			else
-			{
-				prob_estimates = (double *) malloc(nr_class*sizeof(double));
-			}
-		}
+		if(ret != 0)
+			debug("can't save model to file %s\n",model_file_name);
+		return ret;
+	}
 
-        x = (struct svm_node *) malloc((len+1)*sizeof(struct svm_node));
-
-        for (int i = 0; i < len; i++) {
-            x[i].index = i;
-            x[i].value = input[i];
-        }
-        x[len].index = -1;
-
-        double predict_label;
-        if (predict_probability && (svm_type==C_SVC || svm_type==NU_SVC))
-        {
-            predict_label = svm_predict_probability(model,x,prob_estimates);
-            *index = (int) predict_label;
-            *prob = prob_estimates[*index];
-        }
-        else
-        {
-            predict_label = svm_predict(model,x);
-            *index = (int) predict_label;
-            *prob = 0.0;
-        }
-
-		if(predict_probability)
-			free(prob_estimates);
+	void free_model()
+	{
+		pthread_rwlock_wrlock(&resident_lock);
+		struct resident_model old = resident;
+		resident.model = NULL;
+		resident.weights = NULL;
+		resident.generation++;
+		pthread_rwlock_unlock(&resident_lock);
+
+		destroy(&old);
+		local.release();
 	}
 
-	void exit_with_help()
+	int predict(const float *input, int len, int *index, double *prob)
 	{
-		debug(
-		"Usage: svm-predict [options] test_file model_file output_file\n"
-		"options:\n"
-		"-b probability_estimates: whether to predict probability estimates, 0 or 1 (default 0); for one-class SVM only 0 is supported\n"
-		"-q : quiet mode (no outputs)\n"
-		);
-		exit(1);
+		return predict_top(input,len,1,index,prob) > 0 ? 0 : -1;
 	}
 
-	int main(int argc, char **argv, float *input, int len, int *index, double *prob)
+	// ranks the labels of a prediction, returns how many were written
+	static int rank_labels(const struct svm_model *model, int predict_probability, double predict_label,
+			const double *prob_estimates, int k, int *labels, double *probs)
 	{
-		int i;
-		// parse options
-		for(i=1;i<argc;i++)
+		if(!predict_probability)
 		{
-			if(argv[i][0] != '-') break;
-			++i;
-			switch(argv[i-1][1])
+			// votes carry no probabilities, only the winner is known
+			labels[0] = (int) predict_label;
+			probs[0] = 0.0;
+			return 1;
+		}
+
+		// partial selection sort, prob_estimates follows the order of model->label;
+		// the arg-max comes first and is the predicted label
+		int nr_class = model->nr_class;
+		int count = k < nr_class ? k : nr_class;
+		for(int n=0;n<count;n++)
+		{
+			int best = -1;
+			for(int j=0;j<nr_class;j++)
 			{
-				case 'b':
-					predict_probability = atoi(argv[i]);
-					break;
-				case 'q':
-					//info = &print_null;
-					i--;
-					break;
-				default:
-					debug("Unknown option: -%c\n", argv[i-1][1]);
-					exit_with_help();
+				bool taken = false;
+				for(int m=0;m<n && !taken;m++)
+					taken = labels[m] == model->label[j];
+				if(!taken && (best < 0 || prob_estimates[j] > prob_estimates[best]))
+					best = j;
 			}
+			labels[n] = model->label[best];
+			probs[n] = prob_estimates[best];
+		}
+		return count;
+	}
+
+	// evaluates the model on one dense vector, through the dense weights of a linear model
+	// or else a node copy kept in x
+	static double predict_label(const struct svm_model *model, const struct svm_dense_weights *weights,
+			const float *input, int len, double *prob_estimates, struct svm_predict_workspace *workspace,
+			struct svm_node **x, int *max_nr_attr)
+	{
+		if(weights != NULL)
+			return svm_predict_dense_probability_ws(model,weights,input,len,prob_estimates,workspace);
+
+		if(len+1 > *max_nr_attr)
+		{
+			*max_nr_attr = len+1;
+			*x = (struct svm_node *) realloc(*x,*max_nr_attr*sizeof(struct svm_node));
+		}
+
+		struct svm_node *nodes = *x;
+		for (int i = 0; i < len; i++) {
+			nodes[i].index = i;
+			nodes[i].value = input[i];
 		}
+		nodes[len].index = -1;
 
-		if(i>=argc)
-			exit_with_help();
+		return svm_predict_probability_ws(model,nodes,prob_estimates,workspace);
+	}
 
-		if((model=svm_load_model(argv[i]))==0)
+	int predict_top(const float *input, int len, int k, int *labels, double *probs)
+	{
+		if(k < 1)
 		{
-			debug("can't open model file %s\n",argv[i]);
-			exit(1);
+			debug("no labels requested\n");
+			return -1;
 		}
 
-		x = (struct svm_node *) malloc(max_nr_attr*sizeof(struct svm_node));
-		if(predict_probability)
+		pthread_rwlock_rdlock(&resident_lock);
+
+		struct svm_model *model = resident.model;
+		if(model == NULL)
 		{
-			if(svm_check_probability_model(model)==0)
-			{
-				debug("Model does not support probabiliy estimates\n");
-				exit(1);
-			}
+			pthread_rwlock_unlock(&resident_lock);
+			debug("no model loaded\n");
+			return -1;
 		}
-		else
+
+		if(local.generation != resident.generation)
 		{
-			if(svm_check_probability_model(model)!=0)
-				debug("Model supports probability estimates, but disabled in prediction.\n");
+			local.release();
+			local.workspace = svm_create_predict_workspace(model);
+			local.prob_estimates = (double *) malloc(model->nr_class*sizeof(double));
+			local.generation = resident.generation;
 		}
 
-		predict(input,len,index,prob);
-		svm_free_and_destroy_model(&model);
-		free(x);
-		free(line);
-		return 0;
+		double label = predict_label(model,resident.weights,input,len,local.prob_estimates,
+				local.workspace,&local.x,&local.max_nr_attr);
+		int count = rank_labels(model,resident.predict_probability,label,local.prob_estimates,
+				k,labels,probs);
+
+		pthread_rwlock_unlock(&resident_lock);
+		return count;
+	}
+
+	// A model that is never installed, with all its scratch memory
+	struct detached_model {
+		struct svm_model *model;
+		struct svm_dense_weights *weights;
+		int predict_probability;
+		struct svm_predict_workspace *workspace;
+		double *prob_estimates;
+		struct svm_node *x;
+		int max_nr_attr;
+	};
+
+	struct detached_model *detach_model(struct svm_model *model)
+	{
+		struct detached_model *d = (struct detached_model *) malloc(sizeof(struct detached_model));
+		d->model = model;
+		d->weights = svm_create_dense_weights(model);
+		int svm_type=svm_get_svm_type(model);
+		d->predict_probability = svm_check_probability_model(model) &&
+				(svm_type==C_SVC || svm_type==NU_SVC);
+		d->workspace = svm_create_predict_workspace(model);
+		d->prob_estimates = (double *) malloc(model->nr_class*sizeof(double));
+		d->x = NULL;
+		d->max_nr_attr = 0;
+		return d;
+	}
+
+	int predict_detached_top(struct detached_model *d, const float *input, int len, int k, int *labels, double *probs)
+	{
+		if(d == NULL || k < 1)
+			return -1;
+
+		double label = predict_label(d->model,d->weights,input,len,d->prob_estimates,
+				d->workspace,&d->x,&d->max_nr_attr);
+		return rank_labels(d->model,d->predict_probability,label,d->prob_estimates,k,labels,probs);
+	}
+
+	void free_detached_model(struct detached_model **d_ptr)
+	{
+		struct detached_model *d = *d_ptr;
+		if(d == NULL)
+			return;
+
+		svm_free_predict_workspace(&d->workspace);
+		svm_free_dense_weights(&d->weights);
+		svm_free_and_destroy_model(&d->model);
+		free(d->prob_estimates);
+		free(d->x);
+		free(d);
+		*d_ptr = NULL;
 	}
 }
@@ -1,6 +1,28 @@
 #ifndef LIBSVM_PREDICT
 #define LIBSVM_PREDICT
+struct svm_model;
+
 namespace svmpredict {
-	int main(int argc, char **argv, float* input, int len, int* index, double* prob);
+	// load (or hot-swap) the resident model, returns 0 on success
+	int load_model(const char *model_file_name);
+	// hot-swap a model trained in memory, which the resident state takes ownership of
+	int install_model(struct svm_model *model);
+	// write the resident model to disk, returns 0 on success
+	int save_model(const char *model_file_name);
+	void free_model();
+	// classify one dense feature vector against the resident model, returns 0 on success;
+	// thread safe, concurrent calls run in parallel
+	int predict(const float *input, int len, int *index, double *prob);
+	// the k most probable labels, most probable first, returns how many were written or -1;
+	// without probability estimates only the predicted label is written, with probability 0
+	int predict_top(const float *input, int len, int k, int *labels, double *probs);
+
+	// a model that predicts on its own, next to the resident one; not thread safe
+	struct detached_model;
+	// takes ownership of the model
+	struct detached_model *detach_model(struct svm_model *model);
+	// as predict_top() on the detached model
+	int predict_detached_top(struct detached_model *model, const float *input, int len, int k, int *labels, double *probs);
+	void free_detached_model(struct detached_model **model);
 }
 #endif
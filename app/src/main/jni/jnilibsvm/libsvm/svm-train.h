@@ -1,6 +1,15 @@
 #ifndef LIBSVM_TRAIN
 #define LIBSVM_TRAIN
+struct svm_model;
+
 namespace svmtrain {
-	int main(int argc, char **argv);
+	// train the equivalent of "-t 0 -b 1" on l dense rows of dim floats with integer labels,
+	// the returned model owns its support vectors, NULL on failure
+	// incremental reuses the pairwise classifiers of the previous call whose classes have
+	// not changed, which needs the rows of every class in the same (append-only) order
+	struct svm_model *train_dense(const float *x, const int *y, int l, int dim, bool incremental);
+	// the same without touching the pairs cached for incremental training, for models that
+	// are evaluated but never installed
+	struct svm_model *train_dense_detached(const float *x, const int *y, int l, int dim);
 }
 #endif
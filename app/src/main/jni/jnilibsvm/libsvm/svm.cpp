@@ -10,6 +10,11 @@
 #include <stdarg.h>
 #include <limits.h>
 #include <locale.h>
+#include <pthread.h>
+#include <unistd.h>
+#ifdef __ARM_NEON
+#include <arm_neon.h>
+#endif
 #include "svm.h"
 int libsvm_version = LIBSVM_VERSION;
 typedef float Qfloat;
@@ -26,6 +31,113 @@ template <class S, class T> static inline void clone(T*& dst, S* src, int n)
 	dst = new T[n];
 	memcpy((void *)dst,(void *)src,sizeof(T)*n);
 }
+static inline float dense_dot(const float *w, const float *x, int n)
+{
+	int i = 0;
+	float sum;
+#ifdef __ARM_NEON
+	float32x4_t acc = vdupq_n_f32(0);
+	for(; i+4<=n; i+=4)
+		acc = vmlaq_f32(acc, vld1q_f32(w+i), vld1q_f32(x+i));
+	float32x2_t half = vadd_f32(vget_low_f32(acc), vget_high_f32(acc));
+	sum = vget_lane_f32(vpadd_f32(half, half), 0);
+#else
+	// independent sums so that the compiler can vectorize without reassociating
+	float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+	for(; i+4<=n; i+=4)
+	{
+		s0 += w[i]*x[i];
+		s1 += w[i+1]*x[i+1];
+		s2 += w[i+2]*x[i+2];
+		s3 += w[i+3]*x[i+3];
+	}
+	sum = (s0+s1)+(s2+s3);
+#endif
+	for(; i<n; i++)
+		sum += w[i]*x[i];
+	return sum;
+}
+
+// x[i].w for four rows at once, so that x[i] is loaded once per four products
+static inline void dense_dot4(const float *x, const float *w0, const float *w1,
+	const float *w2, const float *w3, int n, float *out)
+{
+	int i = 0;
+#ifdef __ARM_NEON
+	float32x4_t acc0 = vdupq_n_f32(0), acc1 = vdupq_n_f32(0);
+	float32x4_t acc2 = vdupq_n_f32(0), acc3 = vdupq_n_f32(0);
+	for(; i+4<=n; i+=4)
+	{
+		float32x4_t v = vld1q_f32(x+i);
+		acc0 = vmlaq_f32(acc0, v, vld1q_f32(w0+i));
+		acc1 = vmlaq_f32(acc1, v, vld1q_f32(w1+i));
+		acc2 = vmlaq_f32(acc2, v, vld1q_f32(w2+i));
+		acc3 = vmlaq_f32(acc3, v, vld1q_f32(w3+i));
+	}
+	float32x2_t s01 = vpadd_f32(vadd_f32(vget_low_f32(acc0), vget_high_f32(acc0)),
+		vadd_f32(vget_low_f32(acc1), vget_high_f32(acc1)));
+	float32x2_t s23 = vpadd_f32(vadd_f32(vget_low_f32(acc2), vget_high_f32(acc2)),
+		vadd_f32(vget_low_f32(acc3), vget_high_f32(acc3)));
+	out[0] = vget_lane_f32(s01, 0);
+	out[1] = vget_lane_f32(s01, 1);
+	out[2] = vget_lane_f32(s23, 0);
+	out[3] = vget_lane_f32(s23, 1);
+#else
+	float acc[4][4] = {{0}};
+	for(; i+4<=n; i+=4)
+		for(int k=0;k<4;k++)
+		{
+			acc[0][k] += x[i+k]*w0[i+k];
+			acc[1][k] += x[i+k]*w1[i+k];
+			acc[2][k] += x[i+k]*w2[i+k];
+			acc[3][k] += x[i+k]*w3[i+k];
+		}
+	for(int r=0;r<4;r++)
+		out[r] = (acc[r][0]+acc[r][1])+(acc[r][2]+acc[r][3]);
+#endif
+	for(; i<n; i++)
+	{
+		out[0] += x[i]*w0[i];
+		out[1] += x[i]*w1[i];
+		out[2] += x[i]*w2[i];
+		out[3] += x[i]*w3[i];
+	}
+}
+
+//
+// Dense vectors, see SVM_DENSE_INDEX
+//
+static inline bool is_dense(const svm_node *px)
+{
+	return px->index == SVM_DENSE_INDEX;
+}
+
+static inline int dense_dim(const svm_node *px)
+{
+	return (int) px->value;
+}
+
+static inline const float *dense_values(const svm_node *px)
+{
+	return (const float *) (px+1);
+}
+
+static double dense_node_dot(const svm_node *px, const svm_node *py)
+{
+	if(!is_dense(px))
+		swap(px,py);
+	const float *v = dense_values(px);
+	int n = dense_dim(px);
+	if(is_dense(py))
+		return dense_dot(v, dense_values(py), min(n, dense_dim(py)));
+
+	double sum = 0;
+	for(; py->index != -1; ++py)
+		if(py->index >= 0 && py->index < n)
+			sum += v[py->index] * py->value;
+	return sum;
+}
+
 static inline double powi(double base, int times)
 {
 	double tmp = base, ret = 1.0;
@@ -220,6 +332,10 @@ protected:
 
 	double (Kernel::*kernel_function)(int i, int j) const;
 
+	// every x is dense with the same number of features
+	bool dense_rows;
+	void dense_kernel_row(int i, int start, int len, const schar *y, Qfloat *data) const;
+
 private:
 	const svm_node **x;
 	double *x_square;
@@ -231,6 +347,20 @@ private:
 	const double coef0;
 
 	static double dot(const svm_node *px, const svm_node *py);
+	double kernel_from_dot(int i, int j, double dot) const
+	{
+		switch(kernel_type)
+		{
+			case POLY:
+				return powi(gamma*dot+coef0,degree);
+			case RBF:
+				return exp(-gamma*(x_square[i]+x_square[j]-2*dot));
+			case SIGMOID:
+				return tanh(gamma*dot+coef0);
+			default:
+				return dot;
+		}
+	}
 	double kernel_linear(int i, int j) const
 	{
 		return dot(x[i],x[j]);
@@ -278,6 +408,10 @@ Kernel::Kernel(int l, svm_node * const * x_, const svm_parameter& param)
 
 	clone(x,x_,l);
 
+	dense_rows = kernel_type != PRECOMPUTED && l > 0;
+	for(int i=0;i<l && dense_rows;i++)
+		dense_rows = is_dense(x[i]) && dense_dim(x[i]) == dense_dim(x[0]);
+
 	if(kernel_type == RBF)
 	{
 		x_square = new double[l];
@@ -294,8 +428,29 @@ Kernel::~Kernel()
 	delete[] x_square;
 }
 
+// Kernel values of x[i] against x[start..len), four rows per pass over x[i]
+void Kernel::dense_kernel_row(int i, int start, int len, const schar *y, Qfloat *data) const
+{
+	const float *xi = dense_values(x[i]);
+	int n = dense_dim(x[i]);
+	float dots[4];
+	int j = start;
+	for(; j+4<=len; j+=4)
+	{
+		dense_dot4(xi, dense_values(x[j]), dense_values(x[j+1]),
+			dense_values(x[j+2]), dense_values(x[j+3]), n, dots);
+		for(int k=0;k<4;k++)
+			data[j+k] = (Qfloat)(y[i]*y[j+k]*kernel_from_dot(i,j+k,dots[k]));
+	}
+	for(; j<len; j++)
+		data[j] = (Qfloat)(y[i]*y[j]*kernel_from_dot(i,j,dense_dot(xi,dense_values(x[j]),n)));
+}
+
 double Kernel::dot(const svm_node *px, const svm_node *py)
 {
+	if(is_dense(px) || is_dense(py))
+		return dense_node_dot(px,py);
+
 	double sum = 0;
 	while(px->index != -1 && py->index != -1)
 	{
@@ -327,6 +482,9 @@ double Kernel::k_function(const svm_node *x, const svm_node *y,
 			return powi(param.gamma*dot(x,y)+param.coef0,param.degree);
 		case RBF:
 		{
+			if(is_dense(x) || is_dense(y))
+				return exp(-param.gamma*(dot(x,x)+dot(y,y)-2*dot(x,y)));
+
 			double sum = 0;
 			while(x->index != -1 && y->index !=-1)
 			{
@@ -1285,8 +1443,11 @@ public:
 		int start, j;
 		if((start = cache->get_data(i,&data,len)) < len)
 		{
-			for(j=start;j<len;j++)
-				data[j] = (Qfloat)(y[i]*y[j]*(this->*kernel_function)(i,j));
+			if(dense_rows)
+				dense_kernel_row(i,start,len,y,data);
+			else
+				for(j=start;j<len;j++)
+					data[j] = (Qfloat)(y[i]*y[j]*(this->*kernel_function)(i,j));
 		}
 		return data;
 	}
@@ -1829,18 +1990,16 @@ static double sigmoid_predict(double decision_value, double A, double B)
 }
 
 // Method 2 from the multiclass_prob paper by Wu, Lin, and Weng
-static void multiclass_probability(int k, double **r, double *p)
+// Q (k rows of k) and Qp (k) are caller-provided scratch buffers
+static void multiclass_probability(int k, double **r, double *p, double **Q, double *Qp)
 {
 	int t,j;
 	int iter = 0, max_iter=max(100,k);
-	double **Q=Malloc(double *,k);
-	double *Qp=Malloc(double,k);
 	double pQp, eps=0.005/k;
 	
 	for (t=0;t<k;t++)
 	{
 		p[t]=1.0/k;  // Valid if k = 1
-		Q[t]=Malloc(double,k);
 		Q[t][t]=0;
 		for (j=0;j<t;j++)
 		{
@@ -1887,96 +2046,92 @@ static void multiclass_probability(int k, double **r, double *p)
 	}
 	if (iter>=max_iter)
 		debug("Exceeds max_iter in multiclass_prob\n");
-	for(t=0;t<k;t++) free(Q[t]);
-	free(Q);
-	free(Qp);
 }
 
 // Cross-validation decision values for probability estimates
-static void svm_binary_svc_probability(
-	const svm_problem *prob, const svm_parameter *param,
-	double Cp, double Cn, double& probA, double& probB)
+//
+// The shuffle is seeded by the caller and every fold only writes the decision
+// values of its own samples, so the folds can be trained in any order.
+static const int svm_probability_nr_fold = 5;
+
+static void svm_binary_svc_shuffle(int l, unsigned int seed, int *perm)
 {
 	int i;
-	int nr_fold = 5;
-	int *perm = Malloc(int,prob->l);
-	double *dec_values = Malloc(double,prob->l);
-
-	// random shuffle
-	for(i=0;i<prob->l;i++) perm[i]=i;
-	for(i=0;i<prob->l;i++)
+	for(i=0;i<l;i++) perm[i]=i;
+	for(i=0;i<l;i++)
 	{
-		int j = i+rand()%(prob->l-i);
+		int j = i+rand_r(&seed)%(l-i);
 		swap(perm[i],perm[j]);
 	}
-	for(i=0;i<nr_fold;i++)
-	{
-		int begin = i*prob->l/nr_fold;
-		int end = (i+1)*prob->l/nr_fold;
-		int j,k;
-		struct svm_problem subprob;
+}
 
-		subprob.l = prob->l-(end-begin);
-		subprob.x = Malloc(struct svm_node*,subprob.l);
-		subprob.y = Malloc(double,subprob.l);
-			
-		k=0;
-		for(j=0;j<begin;j++)
-		{
-			subprob.x[k] = prob->x[perm[j]];
-			subprob.y[k] = prob->y[perm[j]];
-			++k;
-		}
-		for(j=end;j<prob->l;j++)
-		{
-			subprob.x[k] = prob->x[perm[j]];
-			subprob.y[k] = prob->y[perm[j]];
-			++k;
-		}
-		int p_count=0,n_count=0;
-		for(j=0;j<k;j++)
-			if(subprob.y[j]>0)
-				p_count++;
-			else
-				n_count++;
+static void svm_binary_svc_fold(
+	const svm_problem *prob, const svm_parameter *param,
+	double Cp, double Cn, const int *perm, int fold, double *dec_values)
+{
+	int nr_fold = svm_probability_nr_fold;
+	int begin = fold*prob->l/nr_fold;
+	int end = (fold+1)*prob->l/nr_fold;
+	int j,k;
+	struct svm_problem subprob;
 
-		if(p_count==0 && n_count==0)
-			for(j=begin;j<end;j++)
-				dec_values[perm[j]] = 0;
-		else if(p_count > 0 && n_count == 0)
-			for(j=begin;j<end;j++)
-				dec_values[perm[j]] = 1;
-		else if(p_count == 0 && n_count > 0)
-			for(j=begin;j<end;j++)
-				dec_values[perm[j]] = -1;
+	subprob.l = prob->l-(end-begin);
+	subprob.x = Malloc(struct svm_node*,subprob.l);
+	subprob.y = Malloc(double,subprob.l);
+		
+	k=0;
+	for(j=0;j<begin;j++)
+	{
+		subprob.x[k] = prob->x[perm[j]];
+		subprob.y[k] = prob->y[perm[j]];
+		++k;
+	}
+	for(j=end;j<prob->l;j++)
+	{
+		subprob.x[k] = prob->x[perm[j]];
+		subprob.y[k] = prob->y[perm[j]];
+		++k;
+	}
+	int p_count=0,n_count=0;
+	for(j=0;j<k;j++)
+		if(subprob.y[j]>0)
+			p_count++;
 		else
-		{
-			svm_parameter subparam = *param;
-			subparam.probability=0;
-			subparam.C=1.0;
-			subparam.nr_weight=2;
-			subparam.weight_label = Malloc(int,2);
-			subparam.weight = Malloc(double,2);
-			subparam.weight_label[0]=+1;
-			subparam.weight_label[1]=-1;
-			subparam.weight[0]=Cp;
-			subparam.weight[1]=Cn;
-			struct svm_model *submodel = svm_train(&subprob,&subparam);
-			for(j=begin;j<end;j++)
-			{
-				svm_predict_values(submodel,prob->x[perm[j]],&(dec_values[perm[j]]));
-				// ensure +1 -1 order; reason not using CV subroutine
-				dec_values[perm[j]] *= submodel->label[0];
-			}		
-			svm_free_and_destroy_model(&submodel);
-			svm_destroy_param(&subparam);
-		}
-		free(subprob.x);
-		free(subprob.y);
-	}		
-	sigmoid_train(prob->l,dec_values,prob->y,probA,probB);
-	free(dec_values);
-	free(perm);
+			n_count++;
+
+	if(p_count==0 && n_count==0)
+		for(j=begin;j<end;j++)
+			dec_values[perm[j]] = 0;
+	else if(p_count > 0 && n_count == 0)
+		for(j=begin;j<end;j++)
+			dec_values[perm[j]] = 1;
+	else if(p_count == 0 && n_count > 0)
+		for(j=begin;j<end;j++)
+			dec_values[perm[j]] = -1;
+	else
+	{
+		svm_parameter subparam = *param;
+		subparam.probability=0;
+		subparam.C=1.0;
+		subparam.nr_weight=2;
+		subparam.weight_label = Malloc(int,2);
+		subparam.weight = Malloc(double,2);
+		subparam.weight_label[0]=+1;
+		subparam.weight_label[1]=-1;
+		subparam.weight[0]=Cp;
+		subparam.weight[1]=Cn;
+		struct svm_model *submodel = svm_train(&subprob,&subparam);
+		for(j=begin;j<end;j++)
+		{
+			svm_predict_values(submodel,prob->x[perm[j]],&(dec_values[perm[j]]));
+			// ensure +1 -1 order; reason not using CV subroutine
+			dec_values[perm[j]] *= submodel->label[0];
+		}		
+		svm_free_and_destroy_model(&submodel);
+		svm_destroy_param(&subparam);
+	}
+	free(subprob.x);
+	free(subprob.y);
 }
 
 // Return parameter of a Laplace distribution 
@@ -2089,10 +2244,206 @@ static void svm_group_classes(const svm_problem *prob, int *nr_class_ret, int **
 	free(data_label);
 }
 
+//
+// Pairwise cache for incremental training
+//
+// Only the support vectors of a pair are kept, as positions within the pair's
+// sub-problem (samples of the first class, then of the second).
+struct svm_pair_entry
+{
+	int label_i, label_j;
+	int count_i, count_j;
+	double C_i, C_j;
+	int probability;
+	double rho;
+	double probA, probB;
+	int nr_sv;
+	int *sv_index;
+	double *sv_alpha;
+};
+
+struct svm_pair_cache
+{
+	int size;
+	int capacity;
+	svm_pair_entry *entries;
+};
+
+svm_pair_cache *svm_create_pair_cache()
+{
+	svm_pair_cache *cache = Malloc(svm_pair_cache,1);
+	cache->size = 0;
+	cache->capacity = 0;
+	cache->entries = NULL;
+	return cache;
+}
+
+void svm_free_pair_cache(svm_pair_cache **cache_ptr_ptr)
+{
+	svm_pair_cache *cache = *cache_ptr_ptr;
+	if(cache == NULL)
+		return;
+	for(int i=0;i<cache->size;i++)
+	{
+		free(cache->entries[i].sv_index);
+		free(cache->entries[i].sv_alpha);
+	}
+	free(cache->entries);
+	free(cache);
+	*cache_ptr_ptr = NULL;
+}
+
+static svm_pair_entry *find_pair(svm_pair_cache *cache, int label_i, int label_j)
+{
+	for(int i=0;i<cache->size;i++)
+		if(cache->entries[i].label_i == label_i && cache->entries[i].label_j == label_j)
+			return &cache->entries[i];
+	return NULL;
+}
+
+static bool reuse_pair(const svm_pair_entry *entry, int ci, int cj, double Ci, double Cj, int probability)
+{
+	return entry != NULL && entry->count_i == ci && entry->count_j == cj &&
+		entry->C_i == Ci && entry->C_j == Cj && entry->probability == probability;
+}
+
+static void store_pair(svm_pair_cache *cache, svm_pair_entry *entry,
+	int label_i, int label_j, int ci, int cj, double Ci, double Cj, int probability,
+	const decision_function &f, double probA, double probB)
+{
+	if(entry == NULL)
+	{
+		if(cache->size == cache->capacity)
+		{
+			cache->capacity = max(2*cache->capacity, 16);
+			cache->entries = (svm_pair_entry *)realloc(cache->entries,cache->capacity*sizeof(svm_pair_entry));
+		}
+		entry = &cache->entries[cache->size++];
+		entry->sv_index = NULL;
+		entry->sv_alpha = NULL;
+	}
+
+	int nr_sv = 0;
+	for(int k=0;k<ci+cj;k++)
+		if(fabs(f.alpha[k]) > 0)
+			++nr_sv;
+
+	entry->label_i = label_i;
+	entry->label_j = label_j;
+	entry->count_i = ci;
+	entry->count_j = cj;
+	entry->C_i = Ci;
+	entry->C_j = Cj;
+	entry->probability = probability;
+	entry->rho = f.rho;
+	entry->probA = probA;
+	entry->probB = probB;
+	entry->nr_sv = nr_sv;
+	entry->sv_index = (int *)realloc(entry->sv_index,max(nr_sv,1)*sizeof(int));
+	entry->sv_alpha = (double *)realloc(entry->sv_alpha,max(nr_sv,1)*sizeof(double));
+
+	int n = 0;
+	for(int k=0;k<ci+cj;k++)
+		if(fabs(f.alpha[k]) > 0)
+		{
+			entry->sv_index[n] = k;
+			entry->sv_alpha[n] = f.alpha[k];
+			++n;
+		}
+}
+
+//
+// Parallel training of the pairwise classifiers
+//
+// The probability CV folds and the final classifier of every pair are separate
+// tasks pulled by a bounded set of threads. A task only writes its own slots
+// and each pair seeds its own CV shuffle, so the model is the same for any
+// number of threads.
+//
+struct svm_pair_job
+{
+	int p;			/* index of the pair */
+	int i, j;		/* classes of the pair */
+	svm_problem sub_prob;
+	double Cp, Cn;
+	int *perm;		/* CV shuffle (perm[sub_prob.l]), NULL without probability */
+	double *dec_values;	/* CV decision values (dec_values[sub_prob.l]) */
+};
+
+struct svm_pair_tasks
+{
+	const svm_parameter *param;
+	svm_pair_job *jobs;
+	decision_function *f;
+	int tasks_per_job;
+	int nr_task;
+	int next;
+	pthread_mutex_t lock;
+};
+
+static int svm_nr_thread = 0;
+
+static unsigned int pair_seed(int label_i, int label_j)
+{
+	return (unsigned int) label_i * 2654435761u ^ (unsigned int) label_j * 40503u;
+}
+
+static void *run_pair_tasks(void *arg)
+{
+	svm_pair_tasks *tasks = (svm_pair_tasks *) arg;
+	while(true)
+	{
+		pthread_mutex_lock(&tasks->lock);
+		int t = tasks->next++;
+		pthread_mutex_unlock(&tasks->lock);
+		if(t >= tasks->nr_task)
+			return NULL;
+
+		svm_pair_job *job = &tasks->jobs[t / tasks->tasks_per_job];
+		int part = t % tasks->tasks_per_job;
+		if(part < tasks->tasks_per_job-1)
+			svm_binary_svc_fold(&job->sub_prob,tasks->param,job->Cp,job->Cn,job->perm,part,job->dec_values);
+		else
+			tasks->f[job->p] = svm_train_one(&job->sub_prob,tasks->param,job->Cp,job->Cn);
+	}
+}
+
+static void train_pairs(const svm_parameter *param, svm_pair_job *jobs, int nr_job, decision_function *f)
+{
+	svm_pair_tasks tasks;
+	tasks.param = param;
+	tasks.jobs = jobs;
+	tasks.f = f;
+	tasks.tasks_per_job = param->probability ? svm_probability_nr_fold+1 : 1;
+	tasks.nr_task = nr_job*tasks.tasks_per_job;
+	tasks.next = 0;
+	pthread_mutex_init(&tasks.lock,NULL);
+
+	int nr_thread = max(min(svm_get_num_threads(),tasks.nr_task),1);
+
+	// the calling thread works too
+	pthread_t *threads = Malloc(pthread_t,nr_thread);
+	int started = 0;
+	for(int t=1;t<nr_thread;t++)
+		if(pthread_create(&threads[started],NULL,run_pair_tasks,&tasks) == 0)
+			++started;
+	run_pair_tasks(&tasks);
+	for(int t=0;t<started;t++)
+		pthread_join(threads[t],NULL);
+
+	free(threads);
+	pthread_mutex_destroy(&tasks.lock);
+}
+
 //
 // Interface functions
 //
 svm_model *svm_train(const svm_problem *prob, const svm_parameter *param)
+{
+	return svm_train_incremental(prob,param,NULL);
+}
+
+svm_model *svm_train_incremental(const svm_problem *prob, const svm_parameter *param, svm_pair_cache *cache)
 {
 	svm_model *model = Malloc(svm_model,1);
 	model->param = *param;
@@ -2192,43 +2543,122 @@ svm_model *svm_train(const svm_problem *prob, const svm_parameter *param)
 			probB=Malloc(double,nr_class*(nr_class-1)/2);
 		}
 
+		int nr_pair = nr_class*(nr_class-1)/2;
+		svm_pair_job *jobs = Malloc(svm_pair_job,max(nr_pair,1));
+		int *entry_index = Malloc(int,max(nr_pair,1));
+		int nr_job = 0;
+
 		int p = 0;
+		int reused = 0;
 		for(i=0;i<nr_class;i++)
 			for(int j=i+1;j<nr_class;j++)
 			{
-				svm_problem sub_prob;
 				int si = start[i], sj = start[j];
 				int ci = count[i], cj = count[j];
-				sub_prob.l = ci+cj;
-				sub_prob.x = Malloc(svm_node *,sub_prob.l);
-				sub_prob.y = Malloc(double,sub_prob.l);
 				int k;
-				for(k=0;k<ci;k++)
+
+				// samples only get appended, so a pair whose classes kept their
+				// counts still has the same sub-problem
+				svm_pair_entry *entry = cache != NULL ? find_pair(cache,label[i],label[j]) : NULL;
+				// an index, storing pairs may move the entries
+				entry_index[p] = entry != NULL ? (int) (entry-cache->entries) : -1;
+				if(reuse_pair(entry,ci,cj,weighted_C[i],weighted_C[j],param->probability))
 				{
-					sub_prob.x[k] = x[si+k];
-					sub_prob.y[k] = +1;
+					f[p].rho = entry->rho;
+					f[p].alpha = Malloc(double,ci+cj);
+					for(k=0;k<ci+cj;k++)
+						f[p].alpha[k] = 0;
+					for(k=0;k<entry->nr_sv;k++)
+						f[p].alpha[entry->sv_index[k]] = entry->sv_alpha[k];
+					if(param->probability)
+					{
+						probA[p] = entry->probA;
+						probB[p] = entry->probB;
+					}
+					++reused;
 				}
-				for(k=0;k<cj;k++)
+				else
 				{
-					sub_prob.x[ci+k] = x[sj+k];
-					sub_prob.y[ci+k] = -1;
+					svm_pair_job *job = &jobs[nr_job++];
+					job->p = p;
+					job->i = i;
+					job->j = j;
+					job->Cp = weighted_C[i];
+					job->Cn = weighted_C[j];
+
+					svm_problem &sub_prob = job->sub_prob;
+					sub_prob.l = ci+cj;
+					sub_prob.x = Malloc(svm_node *,sub_prob.l);
+					sub_prob.y = Malloc(double,sub_prob.l);
+					for(k=0;k<ci;k++)
+					{
+						sub_prob.x[k] = x[si+k];
+						sub_prob.y[k] = +1;
+					}
+					for(k=0;k<cj;k++)
+					{
+						sub_prob.x[ci+k] = x[sj+k];
+						sub_prob.y[ci+k] = -1;
+					}
+
+					job->perm = NULL;
+					job->dec_values = NULL;
+					if(param->probability)
+					{
+						job->perm = Malloc(int,sub_prob.l);
+						job->dec_values = Malloc(double,sub_prob.l);
+						svm_binary_svc_shuffle(sub_prob.l,pair_seed(label[i],label[j]),job->perm);
+					}
 				}
+				++p;
+			}
+
+		if(nr_job > 0)
+			train_pairs(param,jobs,nr_job,f);
+
+		for(int n=0;n<nr_job;n++)
+		{
+			svm_pair_job *job = &jobs[n];
+			int q = job->p;
+			if(param->probability)
+			{
+				sigmoid_train(job->sub_prob.l,job->dec_values,job->sub_prob.y,probA[q],probB[q]);
+				free(job->perm);
+				free(job->dec_values);
+			}
+			free(job->sub_prob.x);
+			free(job->sub_prob.y);
 
-				if(param->probability)
-					svm_binary_svc_probability(&sub_prob,param,weighted_C[i],weighted_C[j],probA[p],probB[p]);
+			if(cache != NULL)
+			{
+				svm_pair_entry *entry = entry_index[q] >= 0 ? &cache->entries[entry_index[q]] : NULL;
+				store_pair(cache,entry,label[job->i],label[job->j],count[job->i],count[job->j],
+					job->Cp,job->Cn,param->probability,f[q],
+					param->probability ? probA[q] : 0,param->probability ? probB[q] : 0);
+			}
+		}
+		free(jobs);
+		free(entry_index);
 
-				f[p] = svm_train_one(&sub_prob,param,weighted_C[i],weighted_C[j]);
+		p = 0;
+		for(i=0;i<nr_class;i++)
+			for(int j=i+1;j<nr_class;j++)
+			{
+				int si = start[i], sj = start[j];
+				int ci = count[i], cj = count[j];
+				int k;
 				for(k=0;k<ci;k++)
 					if(!nonzero[si+k] && fabs(f[p].alpha[k]) > 0)
 						nonzero[si+k] = true;
 				for(k=0;k<cj;k++)
 					if(!nonzero[sj+k] && fabs(f[p].alpha[ci+k]) > 0)
 						nonzero[sj+k] = true;
-				free(sub_prob.x);
-				free(sub_prob.y);
 				++p;
 			}
 
+		if(cache != NULL)
+			debug("reused %d of %d pairwise classifiers\n",reused,p);
+
 		// build output
 
 		model->nr_class = nr_class;
@@ -2501,7 +2931,105 @@ double svm_get_svr_probability(const svm_model *model)
 	}
 }
 
-double svm_predict_values(const svm_model *model, const svm_node *x, double* dec_values)
+//
+// Scratch memory for prediction, so that a resident model can be evaluated
+// repeatedly without touching the heap
+//
+struct svm_predict_workspace
+{
+	int nr_class;
+	int l;
+	double *kvalue;		/* kernel values against each SV (kvalue[l]) */
+	int *start;		/* first SV of each class (start[k]) */
+	int *vote;		/* votes of each class (vote[k]) */
+	double *dec_values;	/* pairwise decision values (dec_values[k*(k-1)/2]) */
+	double **pairwise_prob;	/* pairwise probabilities (pairwise_prob[k][k]) */
+	double **Q;		/* for multiclass_probability (Q[k][k]) */
+	double *Qp;		/* for multiclass_probability (Qp[k]) */
+};
+
+//
+// With a linear kernel every pairwise decision function is w.x - rho with
+// w = sum(coef * SV), so the support vectors collapse into one dense row per pair.
+// The rows are only read while predicting, so threads can share them.
+//
+struct svm_dense_weights
+{
+	int dim;		/* features covered by the rows */
+	int stride;		/* dim rounded up to a multiple of 4 */
+	float *weights;		/* w of each pair (weights[k*(k-1)/2][stride]) */
+};
+
+svm_dense_weights *svm_create_dense_weights(const svm_model *model)
+{
+	if(model->param.kernel_type != LINEAR ||
+	   (model->param.svm_type != C_SVC && model->param.svm_type != NU_SVC))
+		return NULL;
+
+	int i;
+	int nr_class = model->nr_class;
+	int l = model->l;
+	int dim = 0;
+	for(i=0;i<l;i++)
+		if(is_dense(model->SV[i]))
+			dim = max(dim, dense_dim(model->SV[i]));
+		else
+			for(const svm_node *px = model->SV[i]; px->index != -1; px++)
+				dim = max(dim, px->index+1);
+	if(dim == 0)
+		return NULL;
+
+	svm_dense_weights *dw = Malloc(svm_dense_weights,1);
+	dw->dim = dim;
+	dw->stride = (dim+3) & ~3;
+	dw->weights = (float *) calloc((size_t) max(nr_class*(nr_class-1)/2,1)*dw->stride, sizeof(float));
+
+	int *start = Malloc(int,nr_class);
+	start[0] = 0;
+	for(i=1;i<nr_class;i++)
+		start[i] = start[i-1]+model->nSV[i-1];
+
+	int p=0;
+	for(i=0;i<nr_class;i++)
+		for(int j=i+1;j<nr_class;j++)
+		{
+			float *w = dw->weights + (size_t) p*dw->stride;
+			// same coefficients as svm_predict_values_ws
+			int s[2] = {start[i], start[j]};
+			int c[2] = {model->nSV[i], model->nSV[j]};
+			double *coef[2] = {model->sv_coef[j-1], model->sv_coef[i]};
+			for(int side=0;side<2;side++)
+				for(int k=0;k<c[side];k++)
+				{
+					double a = coef[side][s[side]+k];
+					const svm_node *sv = model->SV[s[side]+k];
+					if(is_dense(sv))
+						for(int d=0;d<dense_dim(sv);d++)
+							w[d] += (float) (a * dense_values(sv)[d]);
+					else
+						for(const svm_node *px = sv; px->index != -1; px++)
+							if(px->index >= 0)
+								w[px->index] += (float) (a * px->value);
+				}
+			p++;
+		}
+	free(start);
+	return dw;
+}
+
+void svm_free_dense_weights(svm_dense_weights **dw_ptr_ptr)
+{
+	svm_dense_weights *dw = *dw_ptr_ptr;
+	if(dw == NULL)
+		return;
+	free(dw->weights);
+	free(dw);
+	*dw_ptr_ptr = NULL;
+}
+
+
+static double svm_predict_values_ws(const svm_model *model, const svm_node *x, double* dec_values,
+	double *kvalue, int *start, int *vote)
 {
 	int i;
 	if(model->param.svm_type == ONE_CLASS ||
@@ -2525,16 +3053,13 @@ double svm_predict_values(const svm_model *model, const svm_node *x, double* dec
 		int nr_class = model->nr_class;
 		int l = model->l;
 		
-		double *kvalue = Malloc(double,l);
 		for(i=0;i<l;i++)
 			kvalue[i] = Kernel::k_function(x,model->SV[i],model->param);
 
-		int *start = Malloc(int,nr_class);
 		start[0] = 0;
 		for(i=1;i<nr_class;i++)
 			start[i] = start[i-1]+model->nSV[i-1];
 
-		int *vote = Malloc(int,nr_class);
 		for(i=0;i<nr_class;i++)
 			vote[i] = 0;
 
@@ -2570,13 +3095,25 @@ double svm_predict_values(const svm_model *model, const svm_node *x, double* dec
 			if(vote[i] > vote[vote_max_idx])
 				vote_max_idx = i;
 
-		free(kvalue);
-		free(start);
-		free(vote);
 		return model->label[vote_max_idx];
 	}
 }
 
+double svm_predict_values(const svm_model *model, const svm_node *x, double* dec_values)
+{
+	int nr_class = model->nr_class;
+	double *kvalue = Malloc(double,model->l);
+	int *start = Malloc(int,nr_class);
+	int *vote = Malloc(int,nr_class);
+
+	double pred_result = svm_predict_values_ws(model, x, dec_values, kvalue, start, vote);
+
+	free(kvalue);
+	free(start);
+	free(vote);
+	return pred_result;
+}
+
 double svm_predict(const svm_model *model, const svm_node *x)
 {
 	int nr_class = model->nr_class;
@@ -2592,43 +3129,134 @@ double svm_predict(const svm_model *model, const svm_node *x)
 	return pred_result;
 }
 
-double svm_predict_probability(
-	const svm_model *model, const svm_node *x, double *prob_estimates)
+svm_predict_workspace *svm_create_predict_workspace(const svm_model *model)
 {
-	if ((model->param.svm_type == C_SVC || model->param.svm_type == NU_SVC) &&
-	    model->probA!=NULL && model->probB!=NULL)
+	int i;
+	int nr_class = model->nr_class;
+	svm_predict_workspace *ws = Malloc(svm_predict_workspace,1);
+
+	ws->nr_class = nr_class;
+	ws->l = model->l;
+	ws->kvalue = Malloc(double,max(model->l,1));
+	ws->start = Malloc(int,nr_class);
+	ws->vote = Malloc(int,nr_class);
+	ws->dec_values = Malloc(double,max(nr_class*(nr_class-1)/2,1));
+	ws->pairwise_prob = Malloc(double *,nr_class);
+	ws->Q = Malloc(double *,nr_class);
+	ws->Qp = Malloc(double,nr_class);
+	for(i=0;i<nr_class;i++)
+	{
+		ws->pairwise_prob[i] = Malloc(double,nr_class);
+		ws->Q[i] = Malloc(double,nr_class);
+	}
+	return ws;
+}
+
+void svm_free_predict_workspace(svm_predict_workspace** ws_ptr_ptr)
+{
+	svm_predict_workspace *ws = *ws_ptr_ptr;
+	if(ws == NULL)
+		return;
+
+	for(int i=0;i<ws->nr_class;i++)
 	{
-		int i;
-		int nr_class = model->nr_class;
-		double *dec_values = Malloc(double, nr_class*(nr_class-1)/2);
-		svm_predict_values(model, x, dec_values);
+		free(ws->pairwise_prob[i]);
+		free(ws->Q[i]);
+	}
+	free(ws->kvalue);
+	free(ws->start);
+	free(ws->vote);
+	free(ws->dec_values);
+	free(ws->pairwise_prob);
+	free(ws->Q);
+	free(ws->Qp);
+	free(ws);
+	*ws_ptr_ptr = NULL;
+}
 
-		double min_prob=1e-7;
-		double **pairwise_prob=Malloc(double *,nr_class);
-		for(i=0;i<nr_class;i++)
-			pairwise_prob[i]=Malloc(double,nr_class);
-		int k=0;
-		for(i=0;i<nr_class;i++)
-			for(int j=i+1;j<nr_class;j++)
-			{
-				pairwise_prob[i][j]=min(max(sigmoid_predict(dec_values[k],model->probA[k],model->probB[k]),min_prob),1-min_prob);
-				pairwise_prob[j][i]=1-pairwise_prob[i][j];
-				k++;
-			}
-		multiclass_probability(nr_class,pairwise_prob,prob_estimates);
+// pairwise coupling of the decision values in ws->dec_values
+static double couple_probabilities(const svm_model *model, double *prob_estimates, svm_predict_workspace *ws)
+{
+	int i;
+	int nr_class = model->nr_class;
+	double *dec_values = ws->dec_values;
 
-		int prob_max_idx = 0;
-		for(i=1;i<nr_class;i++)
-			if(prob_estimates[i] > prob_estimates[prob_max_idx])
-				prob_max_idx = i;
-		for(i=0;i<nr_class;i++)
-			free(pairwise_prob[i]);
-		free(dec_values);
-		free(pairwise_prob);
-		return model->label[prob_max_idx];
+	double min_prob=1e-7;
+	double **pairwise_prob=ws->pairwise_prob;
+	int k=0;
+	for(i=0;i<nr_class;i++)
+		for(int j=i+1;j<nr_class;j++)
+		{
+			pairwise_prob[i][j]=min(max(sigmoid_predict(dec_values[k],model->probA[k],model->probB[k]),min_prob),1-min_prob);
+			pairwise_prob[j][i]=1-pairwise_prob[i][j];
+			k++;
+		}
+	multiclass_probability(nr_class,pairwise_prob,prob_estimates,ws->Q,ws->Qp);
+
+	int prob_max_idx = 0;
+	for(i=1;i<nr_class;i++)
+		if(prob_estimates[i] > prob_estimates[prob_max_idx])
+			prob_max_idx = i;
+	return model->label[prob_max_idx];
+}
+
+double svm_predict_probability_ws(
+	const svm_model *model, const svm_node *x, double *prob_estimates, svm_predict_workspace *ws)
+{
+	if ((model->param.svm_type == C_SVC || model->param.svm_type == NU_SVC) &&
+	    model->probA!=NULL && model->probB!=NULL)
+	{
+		svm_predict_values_ws(model, x, ws->dec_values, ws->kvalue, ws->start, ws->vote);
+		return couple_probabilities(model, prob_estimates, ws);
 	}
 	else 
-		return svm_predict(model, x);
+		return svm_predict_values_ws(model, x, ws->dec_values, ws->kvalue, ws->start, ws->vote);
+}
+
+double svm_predict_dense_probability_ws(
+	const svm_model *model, const svm_dense_weights *dw, const float *x, int len,
+	double *prob_estimates, svm_predict_workspace *ws)
+{
+	int i;
+	int nr_class = model->nr_class;
+	int n = min(len, dw->dim);
+	double *dec_values = ws->dec_values;
+
+	int nr_pair = nr_class*(nr_class-1)/2;
+	for(int p=0;p<nr_pair;p++)
+		dec_values[p] = dense_dot(dw->weights + (size_t) p*dw->stride, x, n) - model->rho[p];
+
+	if(model->probA!=NULL && model->probB!=NULL)
+		return couple_probabilities(model, prob_estimates, ws);
+
+	int *vote = ws->vote;
+	for(i=0;i<nr_class;i++)
+		vote[i] = 0;
+	int p=0;
+	for(i=0;i<nr_class;i++)
+		for(int j=i+1;j<nr_class;j++)
+		{
+			if(dec_values[p] > 0)
+				++vote[i];
+			else
+				++vote[j];
+			p++;
+		}
+
+	int vote_max_idx = 0;
+	for(i=1;i<nr_class;i++)
+		if(vote[i] > vote[vote_max_idx])
+			vote_max_idx = i;
+	return model->label[vote_max_idx];
+}
+
+double svm_predict_probability(
+	const svm_model *model, const svm_node *x, double *prob_estimates)
+{
+	svm_predict_workspace *ws = svm_create_predict_workspace(model);
+	double pred_result = svm_predict_probability_ws(model, x, prob_estimates, ws);
+	svm_free_predict_workspace(&ws);
+	return pred_result;
 }
 
 static const char *svm_type_table[] =
@@ -2723,6 +3351,9 @@ int svm_save_model(const char *model_file_name, const svm_model *model)
 
 		if(param.kernel_type == PRECOMPUTED)
 			fprintf(fp,"0:%d ",(int)(p->value));
+		else if(is_dense(p))
+			for(int k=0;k<dense_dim(p);k++)
+				fprintf(fp,"%d:%.8g ",k,dense_values(p)[k]);
 		else
 			while(p->index != -1)
 			{
@@ -3171,3 +3802,13 @@ void svm_set_print_string_function(void (*print_func)(const char *))
 	else
 		svm_print_string = print_func;
 }
+
+void svm_set_num_threads(int nr_thread)
+{
+	svm_nr_thread = nr_thread;
+}
+
+int svm_get_num_threads(void)
+{
+	return svm_nr_thread > 0 ? svm_nr_thread : max((int) sysconf(_SC_NPROCESSORS_ONLN),1);
+}
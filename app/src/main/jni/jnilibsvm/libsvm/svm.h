@@ -17,6 +17,10 @@ struct svm_node
 	double value;
 };
 
+/* a dense vector is a single node with this index whose value is the number of features,
+   followed directly in memory by that many floats (feature i at position i) */
+#define SVM_DENSE_INDEX -2
+
 struct svm_problem
 {
 	int l;
@@ -74,6 +78,14 @@ struct svm_model
 };
 
 struct svm_model *svm_train(const struct svm_problem *prob, const struct svm_parameter *param);
+
+/* pairwise classifiers kept across trainings, keyed by the two class labels */
+struct svm_pair_cache;
+struct svm_pair_cache *svm_create_pair_cache();
+void svm_free_pair_cache(struct svm_pair_cache **cache_ptr_ptr);
+/* like svm_train, but a C-SVC pair whose classes kept the same samples (same count, order
+   and weight) reuses its cached classifier, only the other pairs are solved */
+struct svm_model *svm_train_incremental(const struct svm_problem *prob, const struct svm_parameter *param, struct svm_pair_cache *cache);
 void svm_cross_validation(const struct svm_problem *prob, const struct svm_parameter *param, int nr_fold, double *target);
 
 int svm_save_model(const char *model_file_name, const struct svm_model *model);
@@ -90,6 +102,18 @@ double svm_predict_values(const struct svm_model *model, const struct svm_node *
 double svm_predict(const struct svm_model *model, const struct svm_node *x);
 double svm_predict_probability(const struct svm_model *model, const struct svm_node *x, double* prob_estimates);
 
+struct svm_predict_workspace;
+struct svm_predict_workspace *svm_create_predict_workspace(const struct svm_model *model);
+void svm_free_predict_workspace(struct svm_predict_workspace **ws_ptr_ptr);
+double svm_predict_probability_ws(const struct svm_model *model, const struct svm_node *x, double* prob_estimates, struct svm_predict_workspace *ws);
+/* one dense weight row per pair of a linear C-SVC or nu-SVC model (NULL for any other model),
+   which svm_predict_dense_probability_ws evaluates on x[0..len) (feature index i at x[i]);
+   the rows are read-only and may be shared by threads that each use their own workspace */
+struct svm_dense_weights;
+struct svm_dense_weights *svm_create_dense_weights(const struct svm_model *model);
+void svm_free_dense_weights(struct svm_dense_weights **dw_ptr_ptr);
+double svm_predict_dense_probability_ws(const struct svm_model *model, const struct svm_dense_weights *dw, const float *x, int len, double* prob_estimates, struct svm_predict_workspace *ws);
+
 void svm_free_model_content(struct svm_model *model_ptr);
 void svm_free_and_destroy_model(struct svm_model **model_ptr_ptr);
 void svm_destroy_param(struct svm_parameter *param);
@@ -98,6 +122,10 @@ const char *svm_check_parameter(const struct svm_problem *prob, const struct svm
 int svm_check_probability_model(const struct svm_model *model);
 
 void svm_set_print_string_function(void (*print_func)(const char *));
+/* threads training the pairwise classifiers, 0 (the default) uses every online core */
+void svm_set_num_threads(int nr_thread);
+/* threads svm_train uses, after resolving the default */
+int svm_get_num_threads(void);
 
 #ifdef __cplusplus
 }
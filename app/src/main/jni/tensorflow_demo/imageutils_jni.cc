@@ -41,6 +41,17 @@ JNIEXPORT void JNICALL IMAGEUTILS_METHOD(convertYUV420ToARGB8888)(
     jintArray output, jint width, jint height, jint y_row_stride,
     jint uv_row_stride, jint uv_pixel_stride, jboolean halfSize);
 
+JNIEXPORT void JNICALL IMAGEUTILS_METHOD(convertYUV420ToNormalizedRGB)(
+    JNIEnv* env, jclass clazz, jobject y, jobject u, jobject v, jint width,
+    jint height, jint y_row_stride, jint uv_row_stride, jint uv_pixel_stride,
+    jint rotation, jint out_width, jint out_height, jobject output);
+
+JNIEXPORT void JNICALL IMAGEUTILS_METHOD(cropYUV420ToARGB8888)(
+    JNIEnv* env, jclass clazz, jobject y, jobject u, jobject v, jint width,
+    jint height, jint y_row_stride, jint uv_row_stride, jint uv_pixel_stride,
+    jint rotation, jint left, jint top, jint right, jint bottom,
+    jintArray output);
+
 JNIEXPORT void JNICALL IMAGEUTILS_METHOD(convertYUV420SPToRGB565)(
     JNIEnv* env, jclass clazz, jbyteArray input, jbyteArray output, jint width,
     jint height);
@@ -59,10 +70,30 @@ JNIEXPORT void JNICALL
 IMAGEUTILS_METHOD(prewhiten)(
         JNIEnv* env, jclass clazz, jfloatArray input, jint length, jobject output);
 
+JNIEXPORT void JNICALL
+IMAGEUTILS_METHOD(cropResizePrewhiten)(
+        JNIEnv* env, jclass clazz, jintArray input, jint width, jint height,
+        jint left, jint top, jint right, jint bottom,
+        jint outWidth, jint outHeight, jobject output);
+
+JNIEXPORT void JNICALL
+IMAGEUTILS_METHOD(quantize)(
+        JNIEnv* env, jclass clazz, jobject input, jint length, jfloat scale,
+        jint zeroPoint, jint min, jint max, jobject output);
+
 #ifdef __cplusplus
 }
 #endif
 
+// The camera planes and the detector input are read and written in place, a heap
+// buffer is a caller error rather than a crash.
+static void ThrowNotDirect(JNIEnv* env) {
+  jclass exception = env->FindClass("java/lang/IllegalArgumentException");
+  if (exception != NULL) {
+    env->ThrowNew(exception, "Expected direct buffers");
+  }
+}
+
 JNIEXPORT void JNICALL
 IMAGEUTILS_METHOD(convertYUV420SPToARGB8888)(
     JNIEnv* env, jclass clazz, jbyteArray input, jintArray output,
@@ -117,6 +148,46 @@ JNIEXPORT void JNICALL IMAGEUTILS_METHOD(convertYUV420ToARGB8888)(
   env->ReleaseIntArrayElements(output, o, 0);
 }
 
+JNIEXPORT void JNICALL IMAGEUTILS_METHOD(convertYUV420ToNormalizedRGB)(
+    JNIEnv* env, jclass clazz, jobject y, jobject u, jobject v, jint width,
+    jint height, jint y_row_stride, jint uv_row_stride, jint uv_pixel_stride,
+    jint rotation, jint out_width, jint out_height, jobject output) {
+  auto* const y_buff = (uint8_t*) env->GetDirectBufferAddress(y);
+  auto* const u_buff = (uint8_t*) env->GetDirectBufferAddress(u);
+  auto* const v_buff = (uint8_t*) env->GetDirectBufferAddress(v);
+  auto* const o = (jfloat*) env->GetDirectBufferAddress(output);
+  if (y_buff == NULL || u_buff == NULL || v_buff == NULL || o == NULL) {
+    ThrowNotDirect(env);
+    return;
+  }
+
+  ConvertYUV420ToNormalizedRGB(y_buff, u_buff, v_buff, width, height,
+                               y_row_stride, uv_row_stride, uv_pixel_stride,
+                               rotation, out_width, out_height, o);
+}
+
+JNIEXPORT void JNICALL IMAGEUTILS_METHOD(cropYUV420ToARGB8888)(
+    JNIEnv* env, jclass clazz, jobject y, jobject u, jobject v, jint width,
+    jint height, jint y_row_stride, jint uv_row_stride, jint uv_pixel_stride,
+    jint rotation, jint left, jint top, jint right, jint bottom,
+    jintArray output) {
+  auto* const y_buff = (uint8_t*) env->GetDirectBufferAddress(y);
+  auto* const u_buff = (uint8_t*) env->GetDirectBufferAddress(u);
+  auto* const v_buff = (uint8_t*) env->GetDirectBufferAddress(v);
+  if (y_buff == NULL || u_buff == NULL || v_buff == NULL) {
+    ThrowNotDirect(env);
+    return;
+  }
+  // Only the face is converted, write it in place rather than copying back.
+  auto* const o = (jint*) env->GetPrimitiveArrayCritical(output, NULL);
+
+  CropYUV420ToARGB8888(y_buff, u_buff, v_buff, width, height, y_row_stride,
+                       uv_row_stride, uv_pixel_stride, rotation, left, top,
+                       right, bottom, reinterpret_cast<uint32_t*>(o));
+
+  env->ReleasePrimitiveArrayCritical(output, o, 0);
+}
+
 JNIEXPORT void JNICALL IMAGEUTILS_METHOD(convertYUV420SPToRGB565)(
     JNIEnv* env, jclass clazz, jbyteArray input, jbyteArray output, jint width,
     jint height) {
@@ -177,4 +248,29 @@ IMAGEUTILS_METHOD(prewhiten)(
     Prewhiten(i, length, o);
 
     env->ReleaseFloatArrayElements(input, i, JNI_ABORT);
-}
\ No newline at end of file
+}
+
+JNIEXPORT void JNICALL
+IMAGEUTILS_METHOD(cropResizePrewhiten)(
+        JNIEnv* env, jclass clazz, jintArray input, jint width, jint height,
+        jint left, jint top, jint right, jint bottom,
+        jint outWidth, jint outHeight, jobject output) {
+    // The whole frame is passed in, avoid a copy of it for a single face.
+    auto* const i = (jint*) env->GetPrimitiveArrayCritical(input, NULL);
+    auto* const o = (jfloat*) env->GetDirectBufferAddress(output);
+
+    CropResizePrewhiten(reinterpret_cast<uint32_t*>(i), width, height,
+                        left, top, right, bottom, outWidth, outHeight, o);
+
+    env->ReleasePrimitiveArrayCritical(input, i, JNI_ABORT);
+}
+
+JNIEXPORT void JNICALL
+IMAGEUTILS_METHOD(quantize)(
+        JNIEnv* env, jclass clazz, jobject input, jint length, jfloat scale,
+        jint zeroPoint, jint min, jint max, jobject output) {
+    auto* const i = (jfloat*) env->GetDirectBufferAddress(input);
+    auto* const o = (uint8_t*) env->GetDirectBufferAddress(output);
+
+    Quantize(i, scale, zeroPoint, min, max, length, o);
+}
@@ -137,6 +137,10 @@ JNIEXPORT void JNICALL OBJECT_TRACKER_METHOD(downsampleImageNative)(
     JNIEnv* env, jobject thiz, jint width, jint height, jint row_stride,
     jbyteArray input, jint factor, jbyteArray output);
 
+JNIEXPORT void JNICALL OBJECT_TRACKER_METHOD(downsampleImageBufferNative)(
+    JNIEnv* env, jobject thiz, jint width, jint height, jint row_stride,
+    jobject input, jint factor, jbyteArray output);
+
 #ifdef __cplusplus
 }
 #endif
@@ -457,3 +461,29 @@ JNIEXPORT void JNICALL OBJECT_TRACKER_METHOD(downsampleImageNative)(
 }
 
 }  // namespace tf_tracking
+
+JNIEXPORT void JNICALL OBJECT_TRACKER_METHOD(downsampleImageBufferNative)(
+    JNIEnv* env, jobject thiz, jint width, jint height, jint row_stride,
+    jobject input, jint factor, jbyteArray output) {
+  // Read in place, the input is a direct buffer such as a camera plane.
+  uint8_t* const input_array =
+      reinterpret_cast<uint8_t*>(env->GetDirectBufferAddress(input));
+  if (input_array == NULL || output == NULL) {
+    LOGW("Received a null or non-direct buffer!");
+    return;
+  }
+
+  jbyte* const output_array = env->GetByteArrayElements(output, 0);
+
+  {
+    const int new_width = (width + factor - 1) / factor;
+    const int new_height = (height + factor - 1) / factor;
+
+    tf_tracking::Image<uint8_t> downsampled_image(
+        new_width, new_height, reinterpret_cast<uint8_t*>(output_array), false);
+
+    downsampled_image.DownsampleAveraged(input_array, row_stride, factor);
+  }
+
+  env->ReleaseByteArrayElements(output, output_array, 0);
+}
@@ -13,6 +13,84 @@ void Prewhiten(const float* const input, const int num_vals, float* const output
     Normalize(input, mean, std_adj, num_vals, output);
 }
 
+static inline float Clamp(const float value, const float low, const float high) {
+    return value < low ? low : (value > high ? high : value);
+}
+
+void CropResizePrewhiten(const uint32_t* const input, const int width, const int height,
+        const int left, const int top, const int right, const int bottom,
+        const int out_width, const int out_height, float* const output) {
+    const float scale_x = static_cast<float>(right - left) / out_width;
+    const float scale_y = static_cast<float>(bottom - top) / out_height;
+    const int num_vals = out_width * out_height * 3;
+
+    // Resample, unpack and gather the statistics for prewhitening in one pass.
+    double sum = 0.0;
+    double squared_sum = 0.0;
+    float* out = output;
+
+    for (int y = 0; y < out_height; ++y) {
+        const float sy = Clamp(top + (y + 0.5f) * scale_y - 0.5f, 0.0f, height - 1.0f);
+        const int y0 = static_cast<int>(sy);
+        const int y1 = y0 + 1 < height ? y0 + 1 : y0;
+        const float fy = sy - y0;
+
+        const uint32_t* const row0 = input + y0 * width;
+        const uint32_t* const row1 = input + y1 * width;
+
+        float row_sum = 0.0f;
+        float row_squared_sum = 0.0f;
+
+        for (int x = 0; x < out_width; ++x) {
+            const float sx = Clamp(left + (x + 0.5f) * scale_x - 0.5f, 0.0f, width - 1.0f);
+            const int x0 = static_cast<int>(sx);
+            const int x1 = x0 + 1 < width ? x0 + 1 : x0;
+            const float fx = sx - x0;
+
+            const float w00 = (1.0f - fx) * (1.0f - fy);
+            const float w01 = fx * (1.0f - fy);
+            const float w10 = (1.0f - fx) * fy;
+            const float w11 = fx * fy;
+
+            const uint32_t p00 = row0[x0];
+            const uint32_t p01 = row0[x1];
+            const uint32_t p10 = row1[x0];
+            const uint32_t p11 = row1[x1];
+
+            for (int c = 0; c < 3; ++c) {
+                const int shift = 16 - 8 * c;
+                const float value =
+                        w00 * ((p00 >> shift) & 0xff) + w01 * ((p01 >> shift) & 0xff) +
+                        w10 * ((p10 >> shift) & 0xff) + w11 * ((p11 >> shift) & 0xff);
+                *out++ = value;
+                row_sum += value;
+                row_squared_sum += value * value;
+            }
+        }
+
+        sum += row_sum;
+        squared_sum += row_squared_sum;
+    }
+
+    const double mean = sum / num_vals;
+    const double variance = squared_sum / num_vals - mean * mean;
+    const double std = sqrt(variance > 0.0 ? variance : 0.0);
+    auto std_adj = (float) fmax(std, 1.0/sqrt(num_vals));
+
+    Normalize(output, (float) mean, std_adj, num_vals, output);
+}
+
+void Quantize(const float* const input, const float scale, const int zero_point,
+        const int min_value, const int max_value, const int num_vals, uint8_t* const output) {
+    const float inv_scale = 1.0f / scale;
+
+    for (int i = 0; i < num_vals; ++i) {
+        const int value = static_cast<int>(lrintf(input[i] * inv_scale)) + zero_point;
+        output[i] = static_cast<uint8_t>(
+                value < min_value ? min_value : (value > max_value ? max_value : value));
+    }
+}
+
 #ifdef __ARM_NEON
 void NormalizeNeon(const float* const input, const float mean,
         const float std_adj, const int num_vals, float* const output) {
@@ -10,6 +10,19 @@ extern "C" {
 
 void Prewhiten(const float* const input, const int num_vals, float* const output);
 
+// Crops [left, right) x [top, bottom) out of a packed ARGB 8888 image, bilinearly
+// resizes it to out_width x out_height, unpacks it to interleaved RGB floats and
+// prewhitens the result into output (out_width * out_height * 3 floats).
+// Samples outside of the image are clamped to the nearest edge pixel.
+void CropResizePrewhiten(const uint32_t* const input, const int width, const int height,
+        const int left, const int top, const int right, const int bottom,
+        const int out_width, const int out_height, float* const output);
+
+// Quantizes num_vals floats for an 8 bit tensor, saturating to [min_value, max_value].
+// Signed values are stored as their two's complement bytes.
+void Quantize(const float* const input, const float scale, const int zero_point,
+        const int min_value, const int max_value, const int num_vals, uint8_t* const output);
+
 #ifdef __ARM_NEON
 void NormalizeNeon(const float* const input, const float mean,
         const float std_adj, const int num_vals, float* const output);
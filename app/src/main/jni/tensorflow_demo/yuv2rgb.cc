@@ -80,6 +80,129 @@ void ConvertYUV420ToARGB8888(const uint8_t* const yData,
   }
 }
 
+// Maps the pixel box [left, right) x [top, bottom) of the image rotated
+// clockwise by rotation degrees back onto the sensor image of width x height.
+static inline void UprightToSensorBox(const int width, const int height,
+                                      const int rotation, const int left,
+                                      const int top, const int right,
+                                      const int bottom, int* const sx0,
+                                      int* const sy0, int* const sx1,
+                                      int* const sy1) {
+  switch (rotation) {
+    case 90:
+      *sx0 = top;
+      *sx1 = bottom;
+      *sy0 = height - right;
+      *sy1 = height - left;
+      break;
+    case 180:
+      *sx0 = width - right;
+      *sx1 = width - left;
+      *sy0 = height - bottom;
+      *sy1 = height - top;
+      break;
+    case 270:
+      *sx0 = width - bottom;
+      *sx1 = width - top;
+      *sy0 = left;
+      *sy1 = right;
+      break;
+    default:
+      *sx0 = left;
+      *sx1 = right;
+      *sy0 = top;
+      *sy1 = bottom;
+      break;
+  }
+}
+
+void ConvertYUV420ToNormalizedRGB(const uint8_t* const yData,
+                                  const uint8_t* const uData,
+                                  const uint8_t* const vData, const int width,
+                                  const int height, const int y_row_stride,
+                                  const int uv_row_stride,
+                                  const int uv_pixel_stride, const int rotation,
+                                  const int out_width, const int out_height,
+                                  float* const output) {
+  const bool transpose = rotation == 90 || rotation == 270;
+  const int upright_width = transpose ? height : width;
+  const int upright_height = transpose ? width : height;
+  float* out = output;
+
+  for (int oy = 0; oy < out_height; oy++) {
+    const int top = oy * upright_height / out_height;
+    const int bottom = MAX((oy + 1) * upright_height / out_height, top + 1);
+
+    for (int ox = 0; ox < out_width; ox++) {
+      const int left = ox * upright_width / out_width;
+      const int right = MAX((ox + 1) * upright_width / out_width, left + 1);
+
+      // A box of the upright image is a box of the sensor image too, so the
+      // samples are summed along contiguous sensor rows.
+      int sx0, sy0, sx1, sy1;
+      UprightToSensorBox(width, height, rotation, left, top, right, bottom,
+                         &sx0, &sy0, &sx1, &sy1);
+
+      int sum_y = 0;
+      int sum_u = 0;
+      int sum_v = 0;
+      for (int sy = sy0; sy < sy1; sy++) {
+        const uint8_t* pY = yData + y_row_stride * sy;
+        const int uv_row_start = uv_row_stride * (sy >> 1);
+        const uint8_t* pU = uData + uv_row_start;
+        const uint8_t* pV = vData + uv_row_start;
+
+        for (int sx = sx0; sx < sx1; sx++) {
+          const int uv_offset = (sx >> 1) * uv_pixel_stride;
+          sum_y += pY[sx];
+          sum_u += pU[uv_offset];
+          sum_v += pV[uv_offset];
+        }
+      }
+
+      const int count = (sx1 - sx0) * (sy1 - sy0);
+      const int half = count / 2;
+      const uint32_t argb = YUV2RGB((sum_y + half) / count,
+                                    (sum_u + half) / count,
+                                    (sum_v + half) / count);
+      *out++ = ((argb >> 16) & 0xff) / 127.5f - 1;
+      *out++ = ((argb >> 8) & 0xff) / 127.5f - 1;
+      *out++ = (argb & 0xff) / 127.5f - 1;
+    }
+  }
+}
+
+void CropYUV420ToARGB8888(const uint8_t* const yData,
+                          const uint8_t* const uData,
+                          const uint8_t* const vData, const int width,
+                          const int height, const int y_row_stride,
+                          const int uv_row_stride, const int uv_pixel_stride,
+                          const int rotation, const int left, const int top,
+                          const int right, const int bottom,
+                          uint32_t* const output) {
+  const bool transpose = rotation == 90 || rotation == 270;
+  const int upright_width = transpose ? height : width;
+  const int upright_height = transpose ? width : height;
+  uint32_t* out = output;
+
+  for (int y = top; y < bottom; y++) {
+    const int uy = MIN(MAX(y, 0), upright_height - 1);
+
+    for (int x = left; x < right; x++) {
+      const int ux = MIN(MAX(x, 0), upright_width - 1);
+
+      int sx0, sy0, sx1, sy1;
+      UprightToSensorBox(width, height, rotation, ux, uy, ux + 1, uy + 1,
+                         &sx0, &sy0, &sx1, &sy1);
+
+      const int uv_offset =
+          uv_row_stride * (sy0 >> 1) + (sx0 >> 1) * uv_pixel_stride;
+      *out++ = YUV2RGB(yData[y_row_stride * sy0 + sx0], uData[uv_offset],
+                       vData[uv_offset]);
+    }
+  }
+}
+
 //  Accepts a YUV 4:2:0 image with a plane of 8 bit Y samples followed by an
 //  interleaved U/V plane containing 8 bit 2x2 subsampled chroma samples,
 //  except the interleave order of U and V is reversed. Converts to a packed
@@ -32,6 +32,30 @@ void ConvertYUV420ToARGB8888(const uint8_t* const yData,
                              const int y_row_stride, const int uv_row_stride,
                              const int uv_pixel_stride);
 
+// Rotates the YUV 420 planes clockwise by rotation degrees (a multiple of 90),
+// area-averages them down to out_width x out_height and writes interleaved RGB
+// floats normalized to [-1, 1] into output, all in a single pass.
+void ConvertYUV420ToNormalizedRGB(const uint8_t* const yData,
+                                  const uint8_t* const uData,
+                                  const uint8_t* const vData, const int width,
+                                  const int height, const int y_row_stride,
+                                  const int uv_row_stride,
+                                  const int uv_pixel_stride, const int rotation,
+                                  const int out_width, const int out_height,
+                                  float* const output);
+
+// Converts [left, right) x [top, bottom) of the YUV 420 planes rotated
+// clockwise by rotation degrees to packed ARGB 8888, one row after the other.
+// Pixels outside of the image repeat the nearest edge pixel.
+void CropYUV420ToARGB8888(const uint8_t* const yData,
+                          const uint8_t* const uData,
+                          const uint8_t* const vData, const int width,
+                          const int height, const int y_row_stride,
+                          const int uv_row_stride, const int uv_pixel_stride,
+                          const int rotation, const int left, const int top,
+                          const int right, const int bottom,
+                          uint32_t* const output);
+
 // Converts YUV420 semi-planar data to ARGB 8888 data using the supplied width
 // and height. The input and output must already be allocated and non-null.
 // For efficiency, no error checking is performed.
@@ -0,0 +1,219 @@
+package pp.facerecognizer.ml;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compares classifiers on the labelled embeddings of a store with stratified k-fold
+ * cross-validation, reporting accuracy, fit time and per-query latency.
+ *
+ * It builds a predictor per fold and candidate, so it only runs from the tests: the nearest
+ * neighbour candidates on the host, the SVM on a device.
+ */
+public class ClassifierBenchmark {
+    private static final int BYTE_SIZE_OF_FLOAT = 4;
+
+    // The graph parameters of HnswClassifier.
+    private static final int HNSW_M = 16;
+    private static final int HNSW_EF_CONSTRUCTION = 100;
+    private static final int HNSW_EF_SEARCH = 64;
+    private static final long HNSW_SEED = 42;
+
+    /**
+     * Builds a predictor from the training rows of one fold, or returns null if it cannot.
+     * A predictor that is {@link Closeable} is closed once its fold is done.
+     */
+    public interface Factory {
+        Predictor fit(FloatBuffer data, int[] labels, int count, int dimension);
+    }
+
+    private static class Candidate {
+        private final String name;
+        private final Factory factory;
+
+        // Totals over all folds.
+        private int correct;
+        private int queries;
+        private long fitNanos;
+        private long queryNanos;
+
+        Candidate(String name, Factory factory) {
+            this.name = name;
+            this.factory = factory;
+        }
+    }
+
+    private final List<Candidate> candidates = new ArrayList<>();
+
+    public ClassifierBenchmark add(String name, Factory factory) {
+        candidates.add(new Candidate(name, factory));
+        return this;
+    }
+
+    /**
+     * The SVM, the HNSW graph, nearest-centroid and k-NN over both metrics. The SVM folds are
+     * trained as detached models, the resident model and its incremental state are left alone.
+     */
+    public static ClassifierBenchmark withDefaults(float threshold) {
+        ClassifierBenchmark benchmark = withNearestNeighbors(threshold);
+        benchmark.candidates.add(0, new Candidate("svm", LibSVM::fit));
+        benchmark.candidates.add(1, new Candidate("hnsw", hnsw(threshold)));
+        return benchmark;
+    }
+
+    /** Nearest-centroid and k-NN over both metrics. */
+    public static ClassifierBenchmark withNearestNeighbors(float threshold) {
+        ClassifierBenchmark benchmark = new ClassifierBenchmark();
+        for (NearestNeighbor.Metric metric : NearestNeighbor.Metric.values()) {
+            benchmark.add("centroid-" + metric,
+                    nearestNeighbor(0, metric, metric == NearestNeighbor.Metric.L2
+                            ? threshold : threshold * threshold / 2));
+            benchmark.add("3nn-" + metric,
+                    nearestNeighbor(3, metric, metric == NearestNeighbor.Metric.L2
+                            ? threshold : threshold * threshold / 2));
+        }
+        return benchmark;
+    }
+
+    /** The graph of an {@link HnswClassifier}, predicting the label of the nearest node. */
+    static Factory hnsw(final float threshold) {
+        return (data, labels, count, dimension) -> {
+            final HnswIndex index = new HnswIndex(
+                    dimension, HNSW_M, HNSW_EF_CONSTRUCTION, HNSW_EF_SEARCH, HNSW_SEED);
+            for (int i = 0; i < count; ++i) {
+                float[] row = new float[dimension];
+                data.position(i * dimension);
+                data.get(row);
+                index.add(labels[i], row);
+            }
+            data.rewind();
+
+            final float[] query = new float[dimension];
+            final int[] ids = new int[1];
+            final float[] distances = new float[1];
+            return embedding -> {
+                for (int i = 0; i < dimension; ++i) {
+                    query[i] = embedding.get(i);
+                }
+                if (index.search(query, 1, ids, distances) == 0) {
+                    return new Classifier.Prediction(Classifier.UNKNOWN, 0);
+                }
+                float distance = (float) Math.sqrt(distances[0]);
+                float confidence = Math.max(0, 1 - distance / 2);
+                return new Classifier.Prediction(distance > threshold
+                        ? Classifier.UNKNOWN : index.getLabel(ids[0]), confidence);
+            };
+        };
+    }
+
+    private static Factory nearestNeighbor(
+            final int k, final NearestNeighbor.Metric metric, final float threshold) {
+        return (data, labels, count, dimension) -> {
+            NearestNeighbor classifier =
+                    new NearestNeighbor(k, metric, threshold, dimension, null);
+            for (int i = 0; i < count; ++i) {
+                float[] row = new float[dimension];
+                data.position(i * dimension);
+                data.get(row);
+                classifier.enroll(labels[i], Collections.singletonList(row));
+            }
+            data.rewind();
+            return classifier;
+        };
+    }
+
+    /**
+     * Runs every candidate on the same folds. Sample i of each class is held out in fold
+     * i % folds.
+     *
+     * @return One line per candidate.
+     */
+    public String run(EmbeddingStore.Snapshot snapshot, int dimension, int folds) {
+        final int size = snapshot.size();
+
+        int[] fold = new int[size];
+        List<Integer> seenLabels = new ArrayList<>();
+        List<Integer> seenCounts = new ArrayList<>();
+        for (int i = 0; i < size; ++i) {
+            int label = snapshot.getLabel(i);
+            int c = seenLabels.indexOf(label);
+            if (c < 0) {
+                c = seenLabels.size();
+                seenLabels.add(label);
+                seenCounts.add(0);
+            }
+            fold[i] = seenCounts.get(c) % folds;
+            seenCounts.set(c, seenCounts.get(c) + 1);
+        }
+
+        FloatBuffer train = ByteBuffer.allocateDirect(size * dimension * BYTE_SIZE_OF_FLOAT)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        int[] trainLabels = new int[size];
+
+        for (int f = 0; f < folds; ++f) {
+            train.clear();
+            int count = 0;
+            for (int i = 0; i < size; ++i) {
+                if (fold[i] != f) {
+                    train.put(snapshot.getEmbedding(i));
+                    trainLabels[count++] = snapshot.getLabel(i);
+                }
+            }
+            train.rewind();
+
+            for (Candidate candidate : candidates) {
+                long start = System.nanoTime();
+                Predictor predictor = candidate.factory.fit(train, trainLabels, count, dimension);
+                candidate.fitNanos += System.nanoTime() - start;
+
+                for (int i = 0; i < size; ++i) {
+                    if (fold[i] != f) {
+                        continue;
+                    }
+                    // A predictor that failed to fit gets every query of the fold wrong.
+                    ++candidate.queries;
+                    if (predictor == null) {
+                        continue;
+                    }
+                    FloatBuffer query = snapshot.getEmbedding(i);
+
+                    start = System.nanoTime();
+                    int predicted = predictor.predict(query).getIndex();
+                    candidate.queryNanos += System.nanoTime() - start;
+
+                    if (predicted == snapshot.getLabel(i)) {
+                        ++candidate.correct;
+                    }
+                }
+
+                if (predictor instanceof Closeable) {
+                    try {
+                        ((Closeable) predictor).close();
+                    } catch (IOException e) {
+                        // The report does not depend on the predictor being released.
+                    }
+                }
+            }
+        }
+
+        StringBuilder report = new StringBuilder();
+        for (Candidate candidate : candidates) {
+            report.append(String.format(Locale.US,
+                    "%-16s accuracy %5.1f%% (%d/%d), fit %.1f ms, %.1f us/query%n",
+                    candidate.name,
+                    100f * candidate.correct / Math.max(candidate.queries, 1),
+                    candidate.correct, candidate.queries,
+                    candidate.fitNanos / 1e6 / folds,
+                    candidate.queryNanos / 1e3 / Math.max(candidate.queries, 1)));
+        }
+        return report.toString();
+    }
+}
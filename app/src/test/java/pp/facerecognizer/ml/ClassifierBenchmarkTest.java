@@ -0,0 +1,92 @@
+package pp.facerecognizer.ml;
+
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the benchmark on the host over a synthetic store of well separated classes.
+ */
+public class ClassifierBenchmarkTest {
+    private static final int DIMENSION = 8;
+    private static final int CLASSES = 4;
+    private static final int SAMPLES = 5;
+
+    private static EmbeddingStore.Snapshot gallery() throws IOException {
+        File file = File.createTempFile("gallery", ".bin");
+        file.deleteOnExit();
+        file.delete();
+
+        EmbeddingStore store = EmbeddingStore.open(file, DIMENSION);
+        for (int c = 0; c < CLASSES; ++c) {
+            List<float[]> rows = new ArrayList<>();
+            for (int s = 0; s < SAMPLES; ++s) {
+                float[] row = new float[DIMENSION];
+                row[c] = 1.0f;
+                row[CLASSES + c] = 0.01f * s;
+                rows.add(row);
+            }
+            store.append(c, rows);
+        }
+        return store.snapshot();
+    }
+
+    private static class Closing implements Predictor, Closeable {
+        private final List<Closing> closed;
+
+        Closing(List<Closing> closed) {
+            this.closed = closed;
+        }
+
+        @Override
+        public Classifier.Prediction predict(FloatBuffer embedding) {
+            return new Classifier.Prediction(Classifier.UNKNOWN, 0.0f);
+        }
+
+        @Override
+        public void close() {
+            closed.add(this);
+        }
+    }
+
+    @Test
+    public void nearestNeighborsSeparateTheClasses() throws IOException {
+        String report = ClassifierBenchmark.withNearestNeighbors(1.1f)
+                .run(gallery(), DIMENSION, SAMPLES);
+
+        String[] lines = report.trim().split("\n");
+        assertEquals(4, lines.length);
+        for (String line : lines) {
+            assertTrue(line, line.contains("(20/20)"));
+        }
+    }
+
+    @Test
+    public void hnswSeparatesTheClasses() throws IOException {
+        String report = new ClassifierBenchmark()
+                .add("hnsw", ClassifierBenchmark.hnsw(1.1f))
+                .run(gallery(), DIMENSION, SAMPLES);
+
+        assertTrue(report, report.contains("(20/20)"));
+    }
+
+    @Test
+    public void closesEveryFoldAndCountsFailedFitsAsWrong() throws IOException {
+        final List<Closing> closed = new ArrayList<>();
+        String report = new ClassifierBenchmark()
+                .add("closing", (data, labels, count, dimension) -> new Closing(closed))
+                .add("failing", (data, labels, count, dimension) -> null)
+                .run(gallery(), DIMENSION, SAMPLES);
+
+        assertEquals(SAMPLES, closed.size());
+        assertTrue(report, report.contains("(0/20)"));
+    }
+}
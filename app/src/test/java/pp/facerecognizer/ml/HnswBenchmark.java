@@ -0,0 +1,131 @@
+package pp.facerecognizer.ml;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the recall@1 and latency of {@link HnswIndex} against an exact scan on synthetic
+ * identities. It lives with the host tests and runs on a desktop JVM over their classes:
+ *
+ * <pre>java -Xmx4g -cp test-classes:classes pp.facerecognizer.ml.HnswBenchmark 1000 10000</pre>
+ *
+ * Every identity is a random unit vector; the gallery holds one noisy sample of each and the
+ * queries are other noisy samples, renormalized like FaceNet embeddings.
+ */
+public class HnswBenchmark {
+    private static final int DIMENSION = FaceNet.EMBEDDING_SIZE;
+    private static final int QUERIES = 1000;
+    private static final float NOISE = 0.6f;
+    private static final int M = 16;
+    private static final int EF_CONSTRUCTION = 100;
+    private static final int[] EF_SEARCH = {16, 32, 64, 128};
+    private static final long SEED = 42;
+
+    public static void main(String[] args) {
+        int[] sizes = {1000, 10000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; ++i) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        for (int identities : sizes) {
+            System.out.print(run(identities));
+        }
+    }
+
+    /** Builds an index over the identities and reports one line per efSearch. */
+    public static String run(int identities) {
+        Random random = new Random(SEED);
+        float[][] centers = new float[identities][];
+        for (int i = 0; i < identities; ++i) {
+            centers[i] = sample(random, null);
+        }
+
+        HnswIndex index = new HnswIndex(DIMENSION, M, EF_CONSTRUCTION, EF_SEARCH[0], SEED);
+        float[] gallery = new float[identities * DIMENSION];
+        long start = System.nanoTime();
+        for (int i = 0; i < identities; ++i) {
+            float[] vector = sample(random, centers[i]);
+            System.arraycopy(vector, 0, gallery, i * DIMENSION, DIMENSION);
+            index.add(i, vector);
+        }
+        long buildNanos = System.nanoTime() - start;
+
+        float[][] queries = new float[QUERIES][];
+        int[] truth = new int[QUERIES];
+        int[] expected = new int[QUERIES];
+        start = System.nanoTime();
+        for (int q = 0; q < QUERIES; ++q) {
+            expected[q] = random.nextInt(identities);
+            queries[q] = sample(random, centers[expected[q]]);
+            truth[q] = scan(gallery, identities, queries[q]);
+        }
+        long scanNanos = System.nanoTime() - start;
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US,
+                "%d identities: build %.1f s, exact scan %.1f us/query\n",
+                identities, buildNanos / 1e9, scanNanos / 1e3 / QUERIES));
+
+        int[] ids = new int[1];
+        float[] distances = new float[1];
+        for (int ef : EF_SEARCH) {
+            index.setEfSearch(ef);
+            int recalled = 0;
+            int identified = 0;
+            start = System.nanoTime();
+            for (int q = 0; q < QUERIES; ++q) {
+                index.search(queries[q], 1, ids, distances);
+                if (ids[0] == truth[q]) {
+                    ++recalled;
+                }
+                if (index.getLabel(ids[0]) == expected[q]) {
+                    ++identified;
+                }
+            }
+            long searchNanos = System.nanoTime() - start;
+
+            report.append(String.format(Locale.US,
+                    "  ef %3d: recall@1 %.3f, identified %.3f, %.1f us/query\n",
+                    ef, (float) recalled / QUERIES, (float) identified / QUERIES,
+                    searchNanos / 1e3 / QUERIES));
+        }
+        return report.toString();
+    }
+
+    /** A unit vector, around the center if there is one. */
+    private static float[] sample(Random random, float[] center) {
+        float[] vector = new float[DIMENSION];
+        float scale = center == null ? 1 : NOISE / (float) Math.sqrt(DIMENSION);
+        float norm = 0;
+        for (int i = 0; i < DIMENSION; ++i) {
+            vector[i] = (float) random.nextGaussian() * scale + (center == null ? 0 : center[i]);
+            norm += vector[i] * vector[i];
+        }
+        norm = (float) Math.sqrt(norm);
+        for (int i = 0; i < DIMENSION; ++i) {
+            vector[i] /= norm;
+        }
+        return vector;
+    }
+
+    private static int scan(float[] gallery, int count, float[] query) {
+        int best = -1;
+        float bestDistance = Float.MAX_VALUE;
+        for (int s = 0; s < count; ++s) {
+            int offset = s * DIMENSION;
+            float sum = 0;
+            for (int i = 0; i < DIMENSION; ++i) {
+                float diff = query[i] - gallery[offset + i];
+                sum += diff * diff;
+            }
+            if (sum < bestDistance) {
+                bestDistance = sum;
+                best = s;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,103 @@
+package pp.facerecognizer.ml;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Saves and reloads a graph on the host, intact and with a corrupt body.
+ */
+public class HnswIndexTest {
+    private static final int DIMENSION = 8;
+    private static final int COUNT = 200;
+    private static final int M = 4;
+    private static final int HEADER_SIZE = 32;
+
+    private static File tempFile(String prefix) throws IOException {
+        File file = File.createTempFile(prefix, ".bin");
+        file.deleteOnExit();
+        file.delete();
+        return file;
+    }
+
+    private static EmbeddingStore gallery() throws IOException {
+        EmbeddingStore store = EmbeddingStore.open(tempFile("gallery"), DIMENSION);
+        Random random = new Random(1);
+        for (int i = 0; i < COUNT; ++i) {
+            float[] row = new float[DIMENSION];
+            for (int d = 0; d < DIMENSION; ++d) {
+                row[d] = random.nextFloat();
+            }
+            store.append(i, Collections.singletonList(row));
+        }
+        return store;
+    }
+
+    private static HnswIndex load(File graph, EmbeddingStore store) throws IOException {
+        return HnswIndex.load(graph, store.snapshot(), DIMENSION, M, 32, 32, 7);
+    }
+
+    private static void assertFindsEveryRecord(HnswIndex index, EmbeddingStore store)
+            throws IOException {
+        EmbeddingStore.Snapshot snapshot = store.snapshot();
+        float[] query = new float[DIMENSION];
+        int[] ids = new int[1];
+        float[] distances = new float[1];
+        for (int i = 0; i < COUNT; ++i) {
+            snapshot.getEmbedding(i).get(query);
+            assertEquals(1, index.search(query, 1, ids, distances));
+            assertEquals(i, index.getLabel(ids[0]));
+        }
+    }
+
+    @Test
+    public void reloadsASavedGraph() throws IOException {
+        EmbeddingStore store = gallery();
+        File graph = tempFile("graph");
+        load(graph, store).save(graph);
+
+        HnswIndex index = load(graph, store);
+        assertFalse(index.isDirty());
+        assertFindsEveryRecord(index, store);
+    }
+
+    @Test
+    public void rebuildsAGraphWithAnOutOfRangeLink() throws IOException {
+        EmbeddingStore store = gallery();
+        File graph = tempFile("graph");
+        load(graph, store).save(graph);
+
+        // The first level 0 link of node 0 follows the levels of every node and its count.
+        try (RandomAccessFile file = new RandomAccessFile(graph, "rw")) {
+            file.seek(HEADER_SIZE + (COUNT + 1) * 4);
+            file.write(new byte[] {(byte) 0xff, (byte) 0xff, 0, 0});
+        }
+
+        HnswIndex index = load(graph, store);
+        assertEquals(COUNT, index.size());
+        assertFindsEveryRecord(index, store);
+    }
+
+    @Test
+    public void rebuildsAGraphWithAnOutOfRangeEntryPoint() throws IOException {
+        EmbeddingStore store = gallery();
+        File graph = tempFile("graph");
+        load(graph, store).save(graph);
+
+        try (RandomAccessFile file = new RandomAccessFile(graph, "rw")) {
+            file.seek(20);
+            file.write(new byte[] {0, 0, 0, 0x7f});
+        }
+
+        HnswIndex index = load(graph, store);
+        assertEquals(COUNT, index.size());
+        assertFindsEveryRecord(index, store);
+    }
+}
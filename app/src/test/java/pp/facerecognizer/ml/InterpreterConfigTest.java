@@ -0,0 +1,89 @@
+package pp.facerecognizer.ml;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Runs the interpreter probe on the host against a fake backend, whose interpreters take as
+ * many milliseconds per inference as the configuration has threads.
+ */
+public class InterpreterConfigTest {
+    private static final InterpreterConfig SLOW = new InterpreterConfig(4, false, false, false);
+    private static final InterpreterConfig FAST = new InterpreterConfig(1, true, false, false);
+    private static final InterpreterConfig NO_DRIVER = new InterpreterConfig(2, false, true, false);
+    private static final InterpreterConfig NO_LIBRARY = new InterpreterConfig(2, false, true, true);
+
+    private static class FakeBackend implements InterpreterConfig.Backend<InterpreterConfig> {
+        final Set<InterpreterConfig> open = new HashSet<>();
+
+        @Override
+        public InterpreterConfig create(InterpreterConfig config) throws Exception {
+            if (config == NO_DRIVER) {
+                throw new IllegalArgumentException("no NNAPI driver");
+            }
+            if (config == NO_LIBRARY) {
+                throw new UnsatisfiedLinkError("no libtensorflowlite_jni.so");
+            }
+            open.add(config);
+            return config;
+        }
+
+        @Override
+        public Runnable inference(InterpreterConfig interpreter) {
+            long millis = interpreter == SLOW ? 4 : 1;
+            return () -> {
+                try {
+                    Thread.sleep(millis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            };
+        }
+
+        @Override
+        public void close(InterpreterConfig interpreter) {
+            open.remove(interpreter);
+        }
+    }
+
+    @Test
+    public void picksTheFastestAndClosesTheRest() {
+        FakeBackend backend = new FakeBackend();
+        List<String> report = new ArrayList<>();
+
+        InterpreterConfig best = InterpreterConfig.createFastest(
+                backend, Arrays.asList(SLOW, NO_DRIVER, FAST, NO_LIBRARY), report);
+
+        assertSame(FAST, best);
+        assertEquals(new HashSet<>(Arrays.asList(FAST)), backend.open);
+        // One line per candidate and the one picked.
+        assertEquals(5, report.size());
+    }
+
+    @Test
+    public void fallsBackWhenEveryCandidateFails() {
+        FakeBackend backend = new FakeBackend();
+        List<String> report = new ArrayList<>();
+
+        InterpreterConfig best = InterpreterConfig.createFastest(
+                backend, Arrays.asList(NO_DRIVER, NO_LIBRARY), report);
+
+        assertNull(best);
+        assertEquals(0, backend.open.size());
+        assertEquals(2, report.size());
+    }
+
+    @Test
+    public void candidatesStartWithThePlainCpu() {
+        assertSame(InterpreterConfig.CPU, InterpreterConfig.candidates().get(0));
+    }
+}
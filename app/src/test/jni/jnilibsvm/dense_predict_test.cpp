@@ -0,0 +1,169 @@
+// Checks that the dense weights of a linear model predict what its support vectors do, and
+// times both paths:
+//
+//   dense_predict_test <model> <libsvm data>
+//
+// Fails if a label differs or a probability differs by more than MAX_PROB_DIFF.
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include "svm.h"
+
+#define MAX_PROB_DIFF 1e-6
+#define TIMED_ROUNDS 200
+
+static double now_us()
+{
+	struct timespec t;
+	clock_gettime(CLOCK_MONOTONIC, &t);
+	return t.tv_sec*1e6 + t.tv_nsec/1e3;
+}
+
+// reads "label index:value ..." lines into dense rows of dim floats, returns the row count
+static int read_rows(const char *file_name, int dim, float **rows, int **labels)
+{
+	FILE *fp = fopen(file_name, "r");
+	if(fp == NULL)
+		return -1;
+
+	int l = 0, capacity = 0;
+	*rows = NULL;
+	*labels = NULL;
+	char *line = (char *) malloc(1<<20);
+	while(fgets(line, 1<<20, fp))
+	{
+		char *p = strtok(line, " \t\n");
+		if(p == NULL)
+			continue;
+		if(l == capacity)
+		{
+			capacity = capacity ? 2*capacity : 64;
+			*rows = (float *) realloc(*rows, (size_t) capacity*dim*sizeof(float));
+			*labels = (int *) realloc(*labels, capacity*sizeof(int));
+		}
+		float *row = *rows + (size_t) l*dim;
+		memset(row, 0, dim*sizeof(float));
+		(*labels)[l] = atoi(p);
+		while((p = strtok(NULL, " \t\n")))
+		{
+			int index;
+			float value;
+			if(sscanf(p, "%d:%f", &index, &value) == 2 && index >= 0 && index < dim)
+				row[index] = value;
+		}
+		++l;
+	}
+	free(line);
+	fclose(fp);
+	return l;
+}
+
+static double sparse_predict(const struct svm_model *model, const float *row, int dim,
+		struct svm_node *x, double *prob, struct svm_predict_workspace *ws)
+{
+	for(int i=0;i<dim;i++)
+	{
+		x[i].index = i;
+		x[i].value = row[i];
+	}
+	x[dim].index = -1;
+	return svm_predict_probability_ws(model, x, prob, ws);
+}
+
+int main(int argc, char **argv)
+{
+	if(argc < 3)
+	{
+		fprintf(stderr, "usage: %s <model> <libsvm data>\n", argv[0]);
+		return 2;
+	}
+
+	struct svm_model *model = svm_load_model(argv[1]);
+	if(model == NULL)
+	{
+		fprintf(stderr, "can't load %s\n", argv[1]);
+		return 2;
+	}
+	struct svm_dense_weights *weights = svm_create_dense_weights(model);
+	if(weights == NULL)
+	{
+		fprintf(stderr, "%s has no dense weights, it is not a linear classifier\n", argv[1]);
+		return 1;
+	}
+
+	// the widest support vector decides the dimension
+	int dim = 0;
+	for(int i=0;i<model->l;i++)
+		for(const struct svm_node *p = model->SV[i]; p->index != -1; ++p)
+			if(p->index+1 > dim)
+				dim = p->index+1;
+
+	float *rows;
+	int *labels;
+	int l = read_rows(argv[2], dim, &rows, &labels);
+	if(l <= 0)
+	{
+		fprintf(stderr, "can't read %s\n", argv[2]);
+		return 2;
+	}
+
+	int nr_class = svm_get_nr_class(model);
+	struct svm_predict_workspace *ws = svm_create_predict_workspace(model);
+	struct svm_node *x = (struct svm_node *) malloc((dim+1)*sizeof(struct svm_node));
+	double *sparse_prob = (double *) malloc(nr_class*sizeof(double));
+	double *dense_prob = (double *) malloc(nr_class*sizeof(double));
+
+	int mismatches = 0, correct = 0;
+	double max_diff = 0;
+	for(int i=0;i<l;i++)
+	{
+		const float *row = rows + (size_t) i*dim;
+		double sparse_label = sparse_predict(model, row, dim, x, sparse_prob, ws);
+		double dense_label = svm_predict_dense_probability_ws(model, weights, row, dim, dense_prob, ws);
+		if(sparse_label != dense_label)
+		{
+			fprintf(stderr, "row %d: sparse %g, dense %g\n", i, sparse_label, dense_label);
+			++mismatches;
+		}
+		if((int) dense_label == labels[i])
+			++correct;
+		for(int j=0;j<nr_class;j++)
+			max_diff = fmax(max_diff, fabs(sparse_prob[j]-dense_prob[j]));
+	}
+
+	double start = now_us();
+	for(int r=0;r<TIMED_ROUNDS;r++)
+		for(int i=0;i<l;i++)
+			sparse_predict(model, rows + (size_t) i*dim, dim, x, sparse_prob, ws);
+	double sparse_us = (now_us()-start)/TIMED_ROUNDS/l;
+
+	start = now_us();
+	for(int r=0;r<TIMED_ROUNDS;r++)
+		for(int i=0;i<l;i++)
+			svm_predict_dense_probability_ws(model, weights, rows + (size_t) i*dim, dim, dense_prob, ws);
+	double dense_us = (now_us()-start)/TIMED_ROUNDS/l;
+
+	printf("%d rows, %d classes, %d SVs, %d-d: %d label mismatches, max probability difference %g\n",
+			l, nr_class, model->l, dim, mismatches, max_diff);
+	printf("accuracy %d/%d, sparse %.2f us/prediction, dense %.2f us/prediction\n",
+			correct, l, sparse_us, dense_us);
+
+	free(x);
+	free(sparse_prob);
+	free(dense_prob);
+	free(rows);
+	free(labels);
+	svm_free_predict_workspace(&ws);
+	svm_free_dense_weights(&weights);
+	svm_free_and_destroy_model(&model);
+
+	if(mismatches > 0 || max_diff > MAX_PROB_DIFF)
+	{
+		printf("FAIL\n");
+		return 1;
+	}
+	printf("PASS\n");
+	return 0;
+}
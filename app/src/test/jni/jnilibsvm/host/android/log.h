@@ -0,0 +1,9 @@
+// Host stand-in for the NDK log header, so libsvm builds and logs to stderr off the device
+#ifndef HOST_ANDROID_LOG_H
+#define HOST_ANDROID_LOG_H
+#include <stdio.h>
+
+#define ANDROID_LOG_DEBUG 3
+#define __android_log_print(priority, tag, ...) (fprintf(stderr, __VA_ARGS__), fputc('\n', stderr))
+
+#endif
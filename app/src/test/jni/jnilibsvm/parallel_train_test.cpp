@@ -0,0 +1,95 @@
+// Checks that training does not depend on the number of threads: the same synthetic gallery
+// trained with 1, 2, 4 and 8 threads has to save byte-identical models.
+//
+//   parallel_train_test [classes] [samples per class] [dim]
+//
+// Build with "make SANITIZE=thread check" to run it under ThreadSanitizer.
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include "svm.h"
+#include "svm-train.h"
+#include "synthetic.h"
+
+static const int thread_counts[] = {1, 2, 4, 8};
+
+static char *read_file(const char *file_name, long *size)
+{
+	FILE *fp = fopen(file_name, "rb");
+	if(fp == NULL)
+		return NULL;
+	fseek(fp, 0, SEEK_END);
+	*size = ftell(fp);
+	rewind(fp);
+	char *data = (char *) malloc(*size);
+	*size = (long) fread(data, 1, *size, fp);
+	fclose(fp);
+	return data;
+}
+
+int main(int argc, char **argv)
+{
+	int classes = argc > 1 ? atoi(argv[1]) : 20;
+	int samples = argc > 2 ? atoi(argv[2]) : 20;
+	int dim = argc > 3 ? atoi(argv[3]) : 512;
+	int l = classes*samples;
+
+	float *x = (float *) malloc((size_t) l*dim*sizeof(float));
+	int *y = (int *) malloc(l*sizeof(int));
+	synthetic_gallery(classes, samples, dim, 1, x, y);
+
+	char reference_name[64], model_name[64];
+	snprintf(reference_name, sizeof(reference_name), "/tmp/parallel_train_test.%d.1", (int) getpid());
+	char *reference = NULL;
+	long reference_size = 0;
+	int failures = 0;
+
+	for(size_t t=0;t<sizeof(thread_counts)/sizeof(thread_counts[0]);t++)
+	{
+		svm_set_num_threads(thread_counts[t]);
+		struct svm_model *model = svmtrain::train_dense_detached(x, y, l, dim);
+		if(model == NULL)
+		{
+			fprintf(stderr, "training with %d threads failed\n", thread_counts[t]);
+			return 1;
+		}
+
+		snprintf(model_name, sizeof(model_name), "/tmp/parallel_train_test.%d.%d",
+				(int) getpid(), thread_counts[t]);
+		int saved = svm_save_model(model_name, model);
+		int nr_sv = model->l;
+		svm_free_and_destroy_model(&model);
+		if(saved != 0)
+		{
+			fprintf(stderr, "can't save %s\n", model_name);
+			return 1;
+		}
+
+		long size = 0;
+		char *data = read_file(model_name, &size);
+		if(reference == NULL)
+		{
+			reference = data;
+			reference_size = size;
+			printf("%d threads: %d SVs, %ld bytes\n", thread_counts[t], nr_sv, size);
+			continue;
+		}
+
+		bool same = data != NULL && size == reference_size && memcmp(data, reference, size) == 0;
+		printf("%d threads: %d SVs, %ld bytes, %s\n", thread_counts[t], nr_sv, size,
+				same ? "identical" : "DIFFERENT");
+		if(!same)
+			++failures;
+		free(data);
+		unlink(model_name);
+	}
+	unlink(reference_name);
+
+	free(reference);
+	free(x);
+	free(y);
+
+	printf(failures ? "FAIL\n" : "PASS\n");
+	return failures ? 1 : 0;
+}
@@ -0,0 +1,26 @@
+// Synthetic galleries for the host tests and benchmarks
+#ifndef SYNTHETIC_H
+#define SYNTHETIC_H
+#include <stdlib.h>
+
+// samples rows of dim floats per class around random centres, labelled by class, in class
+// order; deterministic for a seed
+static void synthetic_gallery(int classes, int samples, int dim, unsigned int seed, float *x, int *y)
+{
+	float *centre = (float *) malloc(dim*sizeof(float));
+	for(int c=0;c<classes;c++)
+	{
+		for(int d=0;d<dim;d++)
+			centre[d] = (float) rand_r(&seed)/RAND_MAX - 0.5f;
+		for(int s=0;s<samples;s++)
+		{
+			float *row = x + (size_t) (c*samples+s)*dim;
+			for(int d=0;d<dim;d++)
+				row[d] = centre[d] + 0.3f*((float) rand_r(&seed)/RAND_MAX - 0.5f);
+			y[c*samples+s] = c;
+		}
+	}
+	free(centre);
+}
+
+#endif
@@ -0,0 +1,109 @@
+// Times training on synthetic galleries and reports the peak RSS of each:
+//
+//   train_benchmark [-t threads] [classes x samples]...
+//
+// e.g. "train_benchmark 10x20 50x20 100x30", the default. Each gallery is trained in a child
+// process of its own, so its peak RSS is not the high-water mark of an earlier one.
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <sys/resource.h>
+#include <sys/wait.h>
+#include "svm.h"
+#include "svm-predict.h"
+#include "svm-train.h"
+#include "synthetic.h"
+
+#define DIM 512
+
+static double elapsed_s(const struct timespec *start)
+{
+	struct timespec now;
+	clock_gettime(CLOCK_MONOTONIC, &now);
+	return now.tv_sec-start->tv_sec + (now.tv_nsec-start->tv_nsec)/1e9;
+}
+
+static int run(int classes, int samples)
+{
+	int l = classes*samples;
+	float *x = (float *) malloc((size_t) l*DIM*sizeof(float));
+	int *y = (int *) malloc(l*sizeof(int));
+	synthetic_gallery(classes, samples, DIM, 1, x, y);
+
+	struct timespec start;
+	clock_gettime(CLOCK_MONOTONIC, &start);
+	struct svm_model *model = svmtrain::train_dense_detached(x, y, l, DIM);
+	double seconds = elapsed_s(&start);
+	if(model == NULL)
+	{
+		fprintf(stderr, "training %dx%d failed\n", classes, samples);
+		return 1;
+	}
+	int nr_sv = model->l;
+
+	struct svmpredict::detached_model *detached = svmpredict::detach_model(model);
+	int correct = 0;
+	for(int i=0;i<l;i++)
+	{
+		int label;
+		double prob;
+		if(svmpredict::predict_detached_top(detached, x + (size_t) i*DIM, DIM, 1, &label, &prob) > 0
+				&& label == y[i])
+			++correct;
+	}
+
+	struct rusage usage;
+	getrusage(RUSAGE_SELF, &usage);
+	printf("%4d x %2d samples, %d threads: %7.2f s, peak RSS %6.1f MB, %d SVs, accuracy %d/%d\n",
+			classes, samples, svm_get_num_threads(), seconds, usage.ru_maxrss/1024.0,
+			nr_sv, correct, l);
+	fflush(stdout);
+
+	svmpredict::free_detached_model(&detached);
+	free(x);
+	free(y);
+	return 0;
+}
+
+int main(int argc, char **argv)
+{
+	static const char *defaults[] = {"10x20", "50x20", "100x30"};
+	const char **galleries = defaults;
+	int count = sizeof(defaults)/sizeof(defaults[0]);
+
+	int first = 1;
+	svm_set_num_threads(1);
+	if(argc > 2 && strcmp(argv[1], "-t") == 0)
+	{
+		svm_set_num_threads(atoi(argv[2]));
+		first = 3;
+	}
+	if(argc > first)
+	{
+		galleries = (const char **) argv + first;
+		count = argc - first;
+	}
+
+	int failures = 0;
+	for(int g=0;g<count;g++)
+	{
+		int classes, samples;
+		if(sscanf(galleries[g], "%dx%d", &classes, &samples) != 2 || classes < 2 || samples < 1)
+		{
+			fprintf(stderr, "not a gallery: %s\n", galleries[g]);
+			return 2;
+		}
+
+		pid_t child = fork();
+		if(child == 0)
+			_exit(run(classes, samples));
+
+		int status;
+		if(child < 0 || waitpid(child, &status, 0) != child
+				|| !WIFEXITED(status) || WEXITSTATUS(status) != 0)
+			++failures;
+	}
+	return failures ? 1 : 0;
+}